@@ -0,0 +1,111 @@
+/*
+ * Data extraction benchmarks
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.bench;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Streaming extraction from the test data, repeated scale times
+ * to measure throughput on larger contents.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExtractBenchmark {
+    @Param({"text/csv", "application/json"})
+    public String mime;
+
+    @Param({"1", "16"})
+    public int scale;
+
+    private IFn extractData;
+    private Object query;
+    private String content;
+
+    /** Read the given test resource. **/
+    static String resource(String name) throws IOException {
+        try (var in = ExtractBenchmark.class.getResourceAsStream(
+                "/test/" + name)) {
+            return new String(in.readAllBytes(), UTF_8);
+        }
+    }
+
+    /** Repeat the records of the given CSV table n times. **/
+    static String repeatCsv(String csv, int n) {
+        var header = csv.indexOf('\n') + 1;
+        return csv.substring(0, header) + csv.substring(header).repeat(n);
+    }
+
+    /** Repeat the elements of the given JSON array n times. **/
+    static String repeatJson(String json, int n) {
+        var body = json.substring(json.indexOf('[') + 1,
+                                  json.lastIndexOf(']')).strip();
+        return "[" + String.join(",", Collections.nCopies(n, body)) + "]";
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        var require = Clojure.var("clojure.core", "require");
+        require.invoke(Clojure.read("comlake.core.qast"));
+        require.invoke(Clojure.read("comlake.core.extract.data"));
+        extractData = Clojure.var("comlake.core.extract.data", "extract-data");
+        var compile = Clojure.var("comlake.core.qast", "json->extraction");
+        if ("text/csv".equals(mime)) {
+            content = repeatCsv(resource("population.csv"), scale);
+            query = compile.invoke(new StringReader(
+                "[\">\", [\".\", [\"$\"], \"year_2019\"], 10000000]"));
+        } else {
+            content = repeatJson(resource("projects.json"), scale);
+            query = compile.invoke(new StringReader(
+                "[\"~\", [\".\", [\"$\"], \"name\"], \"[Aa]\"]"));
+        }
+    }
+
+    @Benchmark
+    public void extract(Blackhole blackhole) {
+        var rows = (Iterable<?>) extractData.invoke(
+            query, mime, new StringReader(content));
+        for (var row : rows)
+            blackhole.consume(row);
+    }
+}
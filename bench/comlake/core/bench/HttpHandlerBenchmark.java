@@ -0,0 +1,123 @@
+/*
+ * HTTP handler benchmarks
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import clojure.java.api.Clojure;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import comlake.core.Configuration;
+import comlake.core.HttpHandler;
+import comlake.core.Metrics;
+
+/**
+ * Request handling over in-memory storage, measuring the handler's
+ * own overhead without IPFS and PostgreSQL round trips.
+ * Configuration is read as usual, except that columnar copies
+ * are disabled to keep extraction on the streaming path.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpHandlerBenchmark {
+    private static final Object BODY = Clojure.read(":body");
+    private static final byte[] QUERY = (
+        "[\"==\", [\".\", [\"$\"], \"source\"], \"World Bank\"]"
+    ).getBytes(UTF_8);
+    private static final byte[] FILTER = (
+        "[\">\", [\".\", [\"$\"], \"year_2019\"], 10000000]"
+    ).getBytes(UTF_8);
+
+    private HttpHandler handler;
+    private byte[] content;
+    private String cid;
+
+    /** Read the given response's body to the end. **/
+    private static void drain(Map response, Blackhole blackhole)
+            throws IOException {
+        var body = response.get(BODY);
+        if (body instanceof InputStream)
+            try (var in = (InputStream) body) {
+                blackhole.consume(in.readAllBytes());
+            }
+        else
+            blackhole.consume(body);
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        var cfg = new Configuration();
+        cfg.columnCacheSize = 0;
+        var fs = new MemoryFileSystem();
+        var db = new MemoryDatabase();
+        handler = new HttpHandler(fs, db, cfg, new Metrics());
+
+        content = ExtractBenchmark.resource("population.csv").getBytes(UTF_8);
+        cid = fs.add(new ByteArrayInputStream(content));
+        db.insertFile(cid, "text/csv");
+        for (var i = 0; i < 100; ++i)
+            db.insertDataset(Map.of("file", cid, "description", "population",
+                                    "source", "World Bank",
+                                    "topics", new String[] {"census"}));
+    }
+
+    @Benchmark
+    public void save(Blackhole blackhole) throws IOException {
+        drain(handler.save(Map.of("content-type", "text/csv"),
+                           new ByteArrayInputStream(content)), blackhole);
+    }
+
+    @Benchmark
+    public void find(Blackhole blackhole) throws IOException {
+        drain(handler.find(new ByteArrayInputStream(QUERY), null, Map.of()),
+              blackhole);
+    }
+
+    @Benchmark
+    public void extract(Blackhole blackhole) throws IOException {
+        drain(handler.extract(cid, new ByteArrayInputStream(FILTER)),
+              blackhole);
+    }
+
+    @Benchmark
+    public void schema(Blackhole blackhole) throws IOException {
+        drain(handler.schema(cid), blackhole);
+    }
+}
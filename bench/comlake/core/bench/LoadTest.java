@@ -0,0 +1,392 @@
+/*
+ * Open-loop HTTP load test
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.bench;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import clojure.java.api.Clojure;
+
+import com.google.gson.Gson;
+
+import comlake.core.Configuration;
+import comlake.core.Metrics;
+
+/**
+ * Open-loop load test of the HTTP server, reporting the latency
+ * percentiles and throughput of each route.
+ *
+ * Requests arrive at exponentially distributed intervals regardless
+ * of how fast earlier ones are served, and their latency is measured
+ * from when they were due rather than when they were actually sent.
+ * Thus time spent waiting for a free connection or for the driver
+ * to catch up is counted, i.e. coordinated omission is corrected.
+ *
+ * Unless an URL is given, the server is started in-process
+ * over in-memory storage, or PostgreSQL as configured.
+**/
+public class LoadTest {
+    private static final Gson gson = new Gson();
+    private static final String USAGE = String.join("\n",
+        "Usage: lein load-test [--OPTION VALUE]...",
+        "",
+        "Options:",
+        "  --url URL          target server, started in-process if not given",
+        "  --port PORT        port of the in-process server (default: 8090)",
+        "  --psql BOOLEAN     use PostgreSQL as configured instead of memory",
+        "  --rate RATE        arrivals per second, all routes (default: 100)",
+        "  --duration SECS    length of the measurement (default: 30)",
+        "  --warmup SECS      length of the unmeasured warmup (default: 5)",
+        "  --concurrency N    most requests in flight (default: 64)",
+        "  --mix ROUTE=W,...  relative weights of the routes (default:",
+        "                     file=1,find=4,extract=2,schema=2,download=4)",
+        "  --seed SEED        seed of arrivals and the mix (default: 0)");
+
+    /**
+     * Histogram of durations in microseconds, with a relative error
+     * under one percent from a microsecond to days.
+    **/
+    static class Latencies {
+        /** Number of sub-buckets per power of two. **/
+        private static final int SUB = 128;
+        private static final int SHIFT = 7;
+
+        private AtomicLongArray counts = new AtomicLongArray(SUB * 64);
+        private LongAdder total = new LongAdder();
+
+        private static int index(long value) {
+            if (value < 2 * SUB)
+                return (int) value;
+            var shift = 63 - Long.numberOfLeadingZeros(value) - SHIFT;
+            return SUB * shift + (int) (value >>> shift);
+        }
+
+        /** Return the largest value of the given bucket. **/
+        private static long value(int index) {
+            if (index < 2 * SUB)
+                return index;
+            var shift = index / SUB - 1;
+            return ((long) (index - SUB * shift + 1) << shift) - 1;
+        }
+
+        public void record(long micros) {
+            counts.incrementAndGet(index(Math.max(micros, 0)));
+            total.increment();
+        }
+
+        public long count() {
+            return total.sum();
+        }
+
+        /** Return the value at the given quantile, or 0 if empty. **/
+        public long quantile(double q) {
+            var target = (long) Math.ceil(q * count());
+            var seen = 0L;
+            for (var i = 0; i < counts.length(); ++i) {
+                seen += counts.get(i);
+                if (seen >= Math.max(target, 1))
+                    return value(i);
+            }
+            return 0;
+        }
+    }
+
+    /** Results of the requests to a route. **/
+    private static class Route {
+        public String name;
+        public int weight;
+        public Supplier<HttpRequest> request;
+        public Latencies latencies = new Latencies();
+        public LongAdder errors = new LongAdder();
+
+        public Route(String name, int weight, Supplier<HttpRequest> request) {
+            this.name = name;
+            this.weight = weight;
+            this.request = request;
+        }
+    }
+
+    private HttpClient client;
+    private URI base;
+    private Map<String, String> options;
+    private List<Route> routes = new ArrayList<>();
+    private Latencies lag = new Latencies();
+
+    private LoadTest(URI base, Map<String, String> options) {
+        this.base = base;
+        this.options = options;
+        client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .executor(Executors.newCachedThreadPool(task -> {
+                var thread = new Thread(task, "load-test");
+                thread.setDaemon(true);
+                return thread;
+            }))
+            .build();
+    }
+
+    private int option(String name, int fallback) {
+        var value = options.get(name);
+        return value == null ? fallback : Integer.parseInt(value);
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(base.resolve(path))
+            .timeout(Duration.ofMinutes(1));
+    }
+
+    private static HttpRequest.BodyPublisher json(String json) {
+        return HttpRequest.BodyPublishers.ofString(json, UTF_8);
+    }
+
+    /** Send the given request and return the response's JSON body. **/
+    private Map<String, Object> send(HttpRequest request)
+            throws IOException, InterruptedException {
+        var response = client.send(request,
+                                   HttpResponse.BodyHandlers.ofString(UTF_8));
+        if (response.statusCode() != 200)
+            throw new IOException(request.uri() + " => "
+                                  + response.statusCode() + " "
+                                  + response.body());
+        return (Map<String, Object>) gson.fromJson(response.body(), Map.class);
+    }
+
+    /** Upload the given test resource and return its CID. **/
+    private String upload(String name, String type)
+            throws IOException, InterruptedException {
+        var content = ExtractBenchmark.resource(name).getBytes(UTF_8);
+        var cid = (String) send(request("/file")
+            .header("Content-Type", type)
+            .POST(HttpRequest.BodyPublishers.ofByteArray(content))
+            .build()).get("cid");
+        send(request("/dataset").POST(json(gson.toJson(Map.of(
+            "file", cid, "description", name,
+            "source", "comlake load test",
+            "topics", List.of("test", type)))))
+            .build());
+        return cid;
+    }
+
+    /** Upload the fixtures and set up the routes of the given weights. **/
+    private void prepare(Map<String, Integer> mix)
+            throws IOException, InterruptedException {
+        var csv = upload("population.csv", "text/csv");
+        var json = upload("projects.json", "application/json");
+        var text = upload("Interjection", "text/plain");
+        var interjection = ExtractBenchmark.resource("Interjection");
+
+        var scripts = new HashMap<String, Supplier<HttpRequest>>();
+        var sequence = new LongAdder();
+        scripts.put("file", () -> {
+            // Distinct content each time, as new uploads would be
+            sequence.increment();
+            return request("/file")
+                .header("Content-Type", "text/plain")
+                .POST(HttpRequest.BodyPublishers.ofString(
+                    interjection + sequence.sum(), UTF_8))
+                .build();
+        });
+        var find = request("/find").POST(json(
+            "[\"==\", [\".\", [\"$\"], \"source\"], \"comlake load test\"]"))
+            .build();
+        scripts.put("find", () -> find);
+        var extract = request("/extract/" + csv).POST(json(
+            "[\">\", [\".\", [\"$\"], \"year_2019\"], 10000000]")).build();
+        scripts.put("extract", () -> extract);
+        var schemas = List.of(request("/schema/" + csv).build(),
+                              request("/schema/" + json).build());
+        var turn = new LongAdder();
+        scripts.put("schema", () -> {
+            turn.increment();
+            return schemas.get((int) (turn.sum() % schemas.size()));
+        });
+        var download = request("/file/" + text).build();
+        scripts.put("download", () -> download);
+
+        for (var entry : mix.entrySet()) {
+            var name = entry.getKey();
+            if (!scripts.containsKey(name))
+                throw new IllegalArgumentException("unknown route: " + name);
+            if (entry.getValue() > 0)
+                routes.add(new Route(name, entry.getValue(),
+                                     scripts.get(name)));
+        }
+        if (routes.isEmpty())
+            throw new IllegalArgumentException("empty mix");
+    }
+
+    /** Pick a route at random according to their weights. **/
+    private Route pick(Random random, int totalWeight) {
+        var n = random.nextInt(totalWeight);
+        for (var route : routes) {
+            n -= route.weight;
+            if (n < 0)
+                return route;
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Issue requests at the given rate for the warmup and then
+     * the measurement, recording only those due during the latter.
+    **/
+    private void run(double rate, long warmup, long duration, int concurrency,
+                     long seed) throws InterruptedException {
+        var random = new Random(seed);
+        var totalWeight = routes.stream().mapToInt(r -> r.weight).sum();
+        var permits = new Semaphore(concurrency);
+        var start = System.nanoTime();
+        var measured = start + warmup;
+        var end = measured + duration;
+        var due = (double) start;
+
+        while (due < end) {
+            due += -Math.log(1 - random.nextDouble()) / rate * 1e9;
+            var intended = (long) due;
+            var route = pick(random, totalWeight);
+            var delay = intended - System.nanoTime();
+            if (delay > 0)
+                LockSupport.parkNanos(delay);
+            permits.acquire();
+            var recorded = intended >= measured && intended < end;
+            if (recorded)
+                lag.record((System.nanoTime() - intended) / 1000);
+            client.sendAsync(route.request.get(),
+                             HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, e) -> {
+                    // Measured from when the request was due
+                    var latency = System.nanoTime() - intended;
+                    permits.release();
+                    if (!recorded)
+                        return;
+                    route.latencies.record(latency / 1000);
+                    if (e != null || response.statusCode() >= 400)
+                        route.errors.increment();
+                });
+        }
+        permits.acquire(concurrency);
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.2f", micros / 1000.0);
+    }
+
+    /** Print the results measured over the given duration. **/
+    private void report(long duration) {
+        var seconds = duration / 1e9;
+        System.out.printf("%-10s %8s %7s %9s %9s %9s %9s %9s%n",
+                          "route", "requests", "errors", "req/s",
+                          "p50 ms", "p99 ms", "p999 ms", "max ms");
+        var all = 0L;
+        for (var route : routes) {
+            var latencies = route.latencies;
+            all += latencies.count();
+            System.out.printf("%-10s %8d %7d %9.1f %9s %9s %9s %9s%n",
+                              route.name, latencies.count(),
+                              route.errors.sum(),
+                              latencies.count() / seconds,
+                              millis(latencies.quantile(0.5)),
+                              millis(latencies.quantile(0.99)),
+                              millis(latencies.quantile(0.999)),
+                              millis(latencies.quantile(1)));
+        }
+        System.out.printf("%-10s %8d %7s %9.1f%n", "total", all, "",
+                          all / seconds);
+        System.out.printf("Send lag behind schedule: p99 %s ms, max %s ms%n",
+                          millis(lag.quantile(0.99)), millis(lag.quantile(1)));
+    }
+
+    /** Parse the given route weights, e.g. find=4,extract=1. **/
+    static Map<String, Integer> mix(String spec) {
+        var result = new LinkedHashMap<String, Integer>();
+        for (var pair : spec.split(",")) {
+            var i = pair.indexOf('=');
+            if (i < 0)
+                throw new IllegalArgumentException("malformed mix: " + pair);
+            result.put(pair.substring(0, i).strip(),
+                       Integer.parseInt(pair.substring(i + 1).strip()));
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<String, String>();
+        for (var i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                System.err.println(USAGE);
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        Closeable server = null;
+        var url = options.get("url");
+        if (url == null) {
+            var port = Integer.parseInt(options.getOrDefault("port", "8090"));
+            var require = Clojure.var("clojure.core", "require");
+            require.invoke(Clojure.read("comlake.core.main"));
+            var cfg = new Configuration();
+            var metrics = new Metrics();
+            var db = Boolean.parseBoolean(options.get("psql"))
+                ? Clojure.var("comlake.core.main", "database")
+                    .invoke(cfg, metrics)
+                : new MemoryDatabase();
+            server = (Closeable) Clojure.var("comlake.core.main", "serve")
+                .invoke(new MemoryFileSystem(), db, cfg, metrics, port);
+            url = "http://localhost:" + port;
+        }
+
+        try {
+            var test = new LoadTest(URI.create(url), options);
+            test.prepare(mix(options.getOrDefault(
+                "mix", "file=1,find=4,extract=2,schema=2,download=4")));
+            var duration = TimeUnit.SECONDS.toNanos(
+                test.option("duration", 30));
+            test.run(Double.parseDouble(options.getOrDefault("rate", "100")),
+                     TimeUnit.SECONDS.toNanos(test.option("warmup", 5)),
+                     duration, test.option("concurrency", 64),
+                     Long.parseLong(options.getOrDefault("seed", "0")));
+            test.report(duration);
+        } finally {
+            if (server != null)
+                server.close();
+        }
+        System.exit(0);
+    }
+}
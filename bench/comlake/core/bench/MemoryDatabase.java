@@ -0,0 +1,119 @@
+/*
+ * In-memory database for benchmarks
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.gson.Gson;
+
+import comlake.core.db.Database;
+import comlake.core.db.Query;
+
+/**
+ * Database keeping everything in memory, standing in for PostgreSQL
+ * so that benchmarks measure only the code around it.
+ *
+ * Searches ignore the query entirely, i.e. its predicate, fields
+ * and paging, and return every dataset as an unpaged array:
+ * the predicate is already compiled to SQL, which cannot be
+ * evaluated here.  Benchmarks of /find thus cover parsing
+ * and response streaming, but not filtering.
+**/
+public class MemoryDatabase implements Database {
+    private static final Gson gson = new Gson();
+
+    private Map<String, String> types = new ConcurrentHashMap<>();
+    private Map<String, String> schemas = new ConcurrentHashMap<>();
+    private List<Map<String, Object>> datasets = new CopyOnWriteArrayList<>();
+
+    public void close() {
+    }
+
+    public boolean insertFile(String cid, String type) {
+        types.put(cid, type);
+        schemas.remove(cid);
+        return true;
+    }
+
+    public Set<String> insertFiles(Map<String, String> files) {
+        for (var file : files.entrySet())
+            insertFile(file.getKey(), file.getValue());
+        return Set.of();
+    }
+
+    public boolean insertDirectory(String cid) {
+        return insertFile(cid, "inode/directory");
+    }
+
+    public synchronized String insertDataset(Map<String, Object> dataset) {
+        var row = new HashMap<String, Object>(dataset);
+        row.put("id", String.valueOf(datasets.size() + 1));
+        datasets.add(row);
+        return (String) row.get("id");
+    }
+
+    public List<String> insertDatasets(List<Map<String, Object>> datasets) {
+        var ids = new ArrayList<String>(datasets.size());
+        for (var dataset : datasets)
+            ids.add(insertDataset(dataset));
+        return ids;
+    }
+
+    public String updateDataset(Map<String, Object> dataset) {
+        return insertDataset(dataset);
+    }
+
+    /** Return every dataset, regardless of the query. **/
+    public InputStream search(Query query) {
+        return new ByteArrayInputStream(gson.toJson(datasets).getBytes(UTF_8));
+    }
+
+    public String getType(String cid) {
+        return types.get(cid);
+    }
+
+    public String getSchema(String cid) {
+        return schemas.get(cid);
+    }
+
+    public void setSchema(String cid, String schema) {
+        schemas.put(cid, schema);
+    }
+
+    public Map<String, String[]> getContents(int limit) {
+        var result = new HashMap<String, String[]>();
+        for (var type : types.entrySet()) {
+            if (result.size() >= limit)
+                break;
+            result.put(type.getKey(), new String[] {
+                type.getValue(), schemas.get(type.getKey())});
+        }
+        return result;
+    }
+}
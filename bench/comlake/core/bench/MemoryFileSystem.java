@@ -0,0 +1,107 @@
+/*
+ * In-memory file system for benchmarks
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import comlake.core.fs.FileSystem;
+
+/**
+ * File system keeping everything in memory, standing in for IPFS
+ * so that benchmarks measure only the code around it.
+ * CIDs are made up from SHA-256 digests.
+**/
+public class MemoryFileSystem implements FileSystem {
+    public static final String EMPTY_DIR = (
+        "QmUNLLsPACCz1vLxQVkXqqLX5R1X345qqfHbsf67hvA3Nn");
+
+    private Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private Map<String, Map<String, String>> dirs = new ConcurrentHashMap<>();
+
+    public MemoryFileSystem() {
+        dirs.put(EMPTY_DIR, Map.of());
+    }
+
+    /** Return a made-up CID of the given content. **/
+    static String cid(byte[] content) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(content);
+            return String.format("Qm%064x", new BigInteger(1, digest));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public String mkdir() {
+        return EMPTY_DIR;
+    }
+
+    public String cp(String src, String dest, String path) {
+        return cp(dest, Map.of(path, src));
+    }
+
+    public String cp(String dest, Map<String, String> sources) {
+        var parent = dirs.get(dest);
+        if (parent == null)
+            return null;
+        var result = new TreeMap<String, String>(parent);
+        result.putAll(sources);
+        var cid = cid(result.toString().getBytes(UTF_8));
+        dirs.put(cid, result);
+        return cid;
+    }
+
+    public String add(InputStream istream) {
+        try {
+            var content = istream.readAllBytes();
+            if (content.length == 0)
+                return null;
+            var cid = cid(content);
+            files.put(cid, content);
+            return cid;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Map<String, String> ls(String cid) {
+        return dirs.get(cid);
+    }
+
+    public InputStream fetch(String cid) {
+        var content = files.get(cid);
+        return content == null ? null : new ByteArrayInputStream(content);
+    }
+
+    public Path local(String cid) {
+        return null;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Schema inference benchmarks
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Schema inference of the test data, in full or from a sample. **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark {
+    @Param({"1", "16"})
+    public int scale;
+
+    /** Sampling method, or none to read the whole content. **/
+    @Param({"none", "head", "reservoir"})
+    public String sampling;
+
+    private MemoryFileSystem fs = new MemoryFileSystem();
+    private IFn inferCsv;
+    private IFn inferJson;
+    private String csv;
+    private String json;
+    private List<Object> method;
+
+    private String add(String content) {
+        return fs.add(new ByteArrayInputStream(content.getBytes(UTF_8)));
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        var require = Clojure.var("clojure.core", "require");
+        require.invoke(Clojure.read("comlake.core.extract.metadata"));
+        inferCsv = Clojure.var("comlake.core.extract.metadata", "infer-csv");
+        inferJson = Clojure.var("comlake.core.extract.metadata", "infer-json");
+        csv = add(ExtractBenchmark.repeatCsv(
+            ExtractBenchmark.resource("population.csv"), scale));
+        json = add(ExtractBenchmark.repeatJson(
+            ExtractBenchmark.resource("projects.json"), scale));
+        method = "none".equals(sampling) ? List.of()
+            : List.of(sampling, 100L);
+    }
+
+    @Benchmark
+    public Object csv() {
+        return inferCsv.invoke(csv, fs, method);
+    }
+
+    @Benchmark
+    public Object json() {
+        return inferJson.invoke(json, fs, method);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Query AST compilation benchmarks
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import clojure.java.api.Clojure;
+import clojure.lang.IFn;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Compilation of query ASTs to SQL and to programmatic predicates. **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QastBenchmark {
+    @Param({
+        "[\"==\", [\".\", [\"$\"], \"type\"], \"text/csv\"]",
+        "[\"&\", [\"~\", [\".\", [\"$\"], \"description\"], \"^pop\"],"
+        + " [\">=\", [\".\", [\"$\"], \"year\"], 1960, \"1990\"],"
+        + " [\"&&\", [\".\", [\"$\"], \"topics\"], [\"census\", \"asia\"]]]"})
+    public String ast;
+
+    private IFn toPsql;
+    private IFn toFn;
+    private Object parsed;
+
+    @Setup
+    public void setup() {
+        var require = Clojure.var("clojure.core", "require");
+        require.invoke(Clojure.read("comlake.core.qast"));
+        require.invoke(Clojure.read("clojure.data.json"));
+        toPsql = Clojure.var("comlake.core.qast", "qast->psql");
+        toFn = Clojure.var("comlake.core.qast", "qast->fn");
+        parsed = Clojure.var("clojure.data.json", "read-str").invoke(ast);
+    }
+
+    @Benchmark
+    public Object psql() {
+        return toPsql.invoke(parsed);
+    }
+
+    @Benchmark
+    public Object compile() {
+        return toFn.invoke(parsed);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Search result encoding benchmarks
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.db;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Streaming of search results from a result set of identical rows,
+ * encoded in JSON as PostgreSQL would.
+**/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowsBenchmark {
+    private static final String ROW = (
+        "{\"id\": \"42\", \"cid\": \"QmSomeContent\", \"url\":"
+        + " \"https://data.worldbank.org\", \"file\": \"QmSomeContent\","
+        + " \"type\": \"text/csv\", \"length\": 111337, \"parent\": \"0\","
+        + " \"source\": \"World Bank\", \"topics\": [\"census\","
+        + " \"population\", \"world\"], \"language\": \"en\","
+        + " \"description\": \"Population of countries by year\"}");
+
+    @Param({"100", "10000"})
+    public int size;
+
+    /** Return a result set of the given number of identical rows. **/
+    private static ResultSet resultSet(int size) {
+        var remaining = new int[] {size};
+        return (ResultSet) Proxy.newProxyInstance(
+            ResultSet.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+            (proxy, method, args) -> {
+                switch (method.getName()) {
+                case "next":
+                    return remaining[0]-- > 0;
+                case "getLong":
+                    return (long) remaining[0];
+                case "getString":
+                    return ROW;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+                }
+            });
+    }
+
+    @Benchmark
+    public void encode(Blackhole blackhole) {
+        var rows = new PostgreSQL.Rows(resultSet(size));
+        while (rows.hasNext())
+            blackhole.consume(rows.next());
+    }
+}
@@ -10,7 +10,6 @@
                  [com.google.code.gson/gson "2.8.6"]
                  [com.mchange/c3p0 "0.9.5.5"]
                  [com.taoensso/timbre "5.1.2"]
-                 [luposlip/json-schema "0.3.1"]
                  [net.harawata/appdirs "1.2.1"]
                  [org.clojure/clojure "1.10.3"]
                  [org.clojure/data.csv "1.0.0"]
@@ -19,8 +18,16 @@
   :main ^:skip-aot comlake.core.main
   :java-source-paths ["src"]
   :target-path "target/%s"
-  :profiles {:repl {:plugins [[cider/cider-nrepl "0.26.0"]]}
+  :profiles {:bench {:java-source-paths ["bench"]
+                     :dependencies
+                     [[org.openjdk.jmh/jmh-core "1.33"]
+                      [org.openjdk.jmh/jmh-generator-annprocess "1.33"]]}
+             :repl {:plugins [[cider/cider-nrepl "0.26.0"]]}
              :uberjar {:aot :all}}
+  :aliases {"bench" ["with-profile" "+bench"
+                     "run" "-m" "org.openjdk.jmh.Main"]
+            "load-test" ["with-profile" "+bench"
+                         "run" "-m" "comlake.core.bench.LoadTest"]}
   :plugins [[lein-cloverage "1.2.2"]
             [lein-codox "0.10.7"]]
   :warn-on-reflection false
@@ -1,4 +0,0 @@
-wrk.method = 'POST'
-wrk.path = '/find'
-wrk.headers['Content-Type'] = 'application/json'
-wrk.body = '["==", [".", ["$"], "cid"], "Qm"]'
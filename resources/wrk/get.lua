@@ -1,2 +0,0 @@
-wrk.method = 'GET'
-wrk.path = '/get/QmbwXK2Wg6npoAusr9MkSduuAViS6dxEQBNzqoixanVtj5'
@@ -0,0 +1,263 @@
+/*
+ * Bulk ingestion of files and datasets
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+import clojure.lang.IFn;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import comlake.core.db.Database;
+import comlake.core.fs.FileSystem;
+
+/**
+ * Lazy ingestion of newline-delimited items, each of a file, a dataset
+ * or both, producing the JSON result of each item in order.
+ *
+ * Items are processed in batches: while the files of one batch
+ * are being added to the file system, those of the previous batch
+ * are inserted to the database, each table in a single transaction.
+**/
+public class BulkIngest implements Iterator<String> {
+    private static final List<String> METADATA = List.of(
+        "description", "source", "topics");
+    private static final Gson gson = new Gson();
+
+    /** Item being ingested. **/
+    private static class Item {
+        public String type;
+        public Future<String> cid;
+        public Map<String, Object> dataset;
+        public Object error;
+        public String id;
+    }
+
+    private BufferedReader reader;
+    private FileSystem fs;
+    private Database db;
+    private ExecutorService executor;
+    private IFn extractMetadata;
+    private int batchSize;
+    private List<Item> upcoming;
+    private ArrayDeque<String> results = new ArrayDeque<>();
+    private boolean exhausted = false;
+
+    /**
+     * Ingest items read from the given reader in batches of batchSize,
+     * adding files on the executor and scheduling their metadata
+     * extraction by calling extractMetadata on their CIDs and types.
+    **/
+    public BulkIngest(BufferedReader reader, FileSystem fs, Database db,
+                      ExecutorService executor, IFn extractMetadata,
+                      int batchSize) {
+        this.reader = reader;
+        this.fs = fs;
+        this.db = db;
+        this.executor = executor;
+        this.extractMetadata = extractMetadata;
+        this.batchSize = batchSize;
+    }
+
+    /** Parse the given line and start adding its file, if any. **/
+    private Item parse(String line) {
+        var item = new Item();
+        Map<String, Object> fields;
+        try {
+            fields = (Map<String, Object>) gson.fromJson(line, Map.class);
+        } catch (JsonParseException | ClassCastException e) {
+            item.error = "malformed item";
+            return item;
+        }
+        if (fields == null) {
+            item.error = "malformed item";
+            return item;
+        }
+
+        var data = fields.remove("data");
+        var type = fields.remove("type");
+        if (data == null) {
+            var file = fields.get("file");
+            if (!(file instanceof String)) {
+                item.error = "missing data";
+                return item;
+            }
+            item.cid = CompletableFuture.completedFuture((String) file);
+        } else if (!(data instanceof String)) {
+            item.error = "malformed data";
+            return item;
+        } else if (!(type instanceof String)) {
+            item.error = "missing type";
+            return item;
+        }
+
+        if (METADATA.stream().anyMatch(fields::containsKey)) {
+            var missing = METADATA.stream()
+                .filter(field -> fields.get(field) == null)
+                .collect(Collectors.toList());
+            if (!missing.isEmpty()) {
+                item.error = Map.of("missing-metadata", missing);
+                return item;
+            }
+            item.dataset = fields;
+        }
+
+        if (data != null) {
+            byte[] bytes;
+            try {
+                bytes = Base64.getDecoder().decode((String) data);
+            } catch (IllegalArgumentException e) {
+                item.error = "malformed data";
+                return item;
+            }
+            item.type = (String) type;
+            item.cid = executor.submit(
+                () -> fs.add(new ByteArrayInputStream(bytes)));
+        }
+        return item;
+    }
+
+    /** Read the next batch of items, which is empty at the end. **/
+    private List<Item> read() {
+        var batch = new ArrayList<Item>(batchSize);
+        try {
+            while (!exhausted && batch.size() < batchSize) {
+                var line = reader.readLine();
+                if (line == null)
+                    exhausted = true;
+                else if (!line.isBlank())
+                    batch.add(parse(line));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return batch;
+    }
+
+    /** Wait for the file of the given item to be added. **/
+    private static String await(Item item) {
+        try {
+            var cid = item.cid.get();
+            if (cid == null)
+                item.error = "empty data";
+            return cid;
+        } catch (ExecutionException e) {
+            item.error = "failed to add data";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            item.error = "interrupted";
+        }
+        return null;
+    }
+
+    /** Insert the given batch to the database and queue the results. **/
+    private void commit(List<Item> batch) {
+        var files = new LinkedHashMap<String, String>();
+        for (var item : batch)
+            if (item.error == null && item.type != null) {
+                var cid = await(item);
+                if (cid != null)
+                    files.put(cid, item.type);
+            }
+        var failed = files.isEmpty() ? Set.<String>of()
+                                     : db.insertFiles(files);
+        for (var item : batch)
+            if (item.error == null && item.type != null
+                && failed.contains(await(item)))
+                item.error = "failed to insert file";
+        files.keySet().removeAll(failed);
+        for (var file : files.entrySet()) {
+            try {
+                extractMetadata.invoke(file.getKey(), file.getValue());
+            } catch (RejectedExecutionException e) {
+                // Left to be extracted on demand
+            }
+        }
+
+        var inserted = new ArrayList<Item>();
+        var datasets = new ArrayList<Map<String, Object>>();
+        for (var item : batch)
+            if (item.error == null && item.dataset != null) {
+                item.dataset.put("file", await(item));
+                inserted.add(item);
+                datasets.add(item.dataset);
+            }
+        if (!datasets.isEmpty()) {
+            var ids = db.insertDatasets(datasets);
+            for (var i = 0; i < inserted.size(); ++i) {
+                var item = inserted.get(i);
+                item.id = ids.get(i);
+                if (item.id == null)
+                    item.error = "failed to insert dataset";
+            }
+        }
+
+        for (var item : batch) {
+            if (item.error != null) {
+                results.add(gson.toJson(Map.of("error", item.error)));
+                continue;
+            }
+            var result = new LinkedHashMap<String, String>();
+            result.put("cid", await(item));
+            if (item.id != null)
+                result.put("id", item.id);
+            results.add(gson.toJson(result));
+        }
+    }
+
+    public boolean hasNext() {
+        while (results.isEmpty()) {
+            if (upcoming == null)
+                upcoming = read();
+            if (upcoming.isEmpty())
+                return false;
+            var batch = upcoming;
+            // Start adding the next batch's files before committing.
+            upcoming = read();
+            commit(batch);
+        }
+        return true;
+    }
+
+    public String next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        return results.remove();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Weight-bounded LRU cache
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core;
+
+import java.util.LinkedHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread-safe cache evicting the least recently used entries
+ * once the total weight of the values exceeds the capacity.
+**/
+public class Cache<K, V> {
+    private LinkedHashMap<K, V> map = new LinkedHashMap<>(16, 0.75f, true);
+    private ToLongFunction<V> weigher;
+    private BiConsumer<K, V> evict;
+    private long capacity;
+    private long weight = 0;
+
+    public Cache(long capacity, ToLongFunction<V> weigher) {
+        this(capacity, weigher, (key, value) -> {});
+    }
+
+    /**
+     * Construct a cache calling evict on every entry dropped
+     * to make room for new ones.
+    **/
+    public Cache(long capacity, ToLongFunction<V> weigher,
+                 BiConsumer<K, V> evict) {
+        this.capacity = capacity;
+        this.weigher = weigher;
+        this.evict = evict;
+    }
+
+    /** Return the cached value and mark it as recently used, or null. **/
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    /**
+     * Cache the given value, evicting the least recently used ones
+     * as needed.  Values heavier than the capacity are never cached.
+    **/
+    public synchronized void put(K key, V value) {
+        var w = weigher.applyAsLong(value);
+        if (w > capacity)
+            return;
+        remove(key);
+        map.put(key, value);
+        weight += w;
+
+        var iterator = map.entrySet().iterator();
+        while (weight > capacity) {
+            var eldest = iterator.next();
+            weight -= weigher.applyAsLong(eldest.getValue());
+            iterator.remove();
+            evict.accept(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    /** Drop the given key from the cache and return its value, or null. **/
+    public synchronized V remove(K key) {
+        var value = map.remove(key);
+        if (value != null)
+            weight -= weigher.applyAsLong(value);
+        return value;
+    }
+
+    /** Drop every entry. **/
+    public synchronized void clear() {
+        map.clear();
+        weight = 0;
+    }
+
+    /** Return the number of cached entries. **/
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /** Return the total weight of cached values. **/
+    public synchronized long weight() {
+        return weight;
+    }
+}
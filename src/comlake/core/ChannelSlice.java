@@ -0,0 +1,92 @@
+/*
+ * File region input stream
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
+/**
+ * Input stream of a region of a file channel, read by absolute positions
+ * so that the channel may be shared with other readers.
+**/
+public class ChannelSlice extends InputStream {
+    private FileChannel channel;
+    private long position;
+    private long end;
+    private boolean owner;
+
+    public ChannelSlice(FileChannel channel, long start, long end) {
+        this(channel, start, end, false);
+    }
+
+    private ChannelSlice(FileChannel channel, long start, long end,
+                         boolean owner) {
+        this.channel = channel;
+        this.position = start;
+        this.end = end;
+        this.owner = owner;
+    }
+
+    /**
+     * Open the file at the given path and return the stream
+     * of its bytes from start to end (exclusive),
+     * which closes the file when it is closed.
+    **/
+    public static ChannelSlice open(Path path, long start, long end)
+        throws IOException {
+        return new ChannelSlice(FileChannel.open(path), start, end, true);
+    }
+
+    public int read() throws IOException {
+        var b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (position >= end)
+            return -1;
+        if (len == 0)
+            return 0;
+        var buffer = ByteBuffer.wrap(
+            b, off, (int) Math.min(len, end - position));
+        var n = channel.read(buffer, position);
+        if (n > 0)
+            position += n;
+        return n;
+    }
+
+    public long skip(long n) {
+        var skipped = Math.max(Math.min(n, end - position), 0);
+        position += skipped;
+        return skipped;
+    }
+
+    public int available() {
+        return (int) Math.min(Math.max(end - position, 0), Integer.MAX_VALUE);
+    }
+
+    public void close() throws IOException {
+        if (owner)
+            channel.close();
+    }
+}
@@ -24,6 +24,10 @@ import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.github.jezza.Toml;
 import com.github.jezza.TomlTable;
@@ -34,12 +38,46 @@ import net.harawata.appdirs.AppDirsFactory;
 public class Configuration {
     private static final String pathsep = System.getProperty("file.separator");
     private static final String cfg = pathsep + "core.toml";
+    /** Endpoints whose concurrency can be limited separately. **/
+    public static final List<String> ENDPOINTS = List.of(
+        "dir", "file", "bulk", "cp", "dataset", "update",
+        "find", "schema", "extract");
+    /** Supported file system backends. **/
+    public static final List<String> FS_BACKENDS = List.of("ipfs", "local");
     private static final String fallback = String.join(
         System.getProperty("line.separator"),
+        "fs-backend = \"ipfs\"",
         "ipfs-multiaddr = \"/ip4/127.0.0.1/tcp/5001\"",
         "psql-url = \"jdbc:postgresql:comlake\"",
         "psql-user = \"postgres\"",
-        "psql-passwd = \"postgres\"");
+        "psql-passwd = \"postgres\"",
+        "psql-statement-cache = 256",
+        "psql-batch-size = 0",
+        "psql-batch-delay = 2",
+        "psql-replicas = []",
+        "psql-replica-routing = \"round-robin\"",
+        "psql-read-your-writes = 1000",
+        "psql-statement-timeout = 30000",
+        "psql-max-cost = 0",
+        "find-cache-size = 67108864",
+        "find-cache-entry = 1048576",
+        "content-cache-size = 16777216",
+        "content-cache-warm = 10000",
+        "block-cache-size = 1073741824",
+        "block-cache-heap = 16777216",
+        "column-cache-size = 1073741824",
+        "metadata-threads = 4",
+        "metadata-queue = 64",
+        "metadata-cache-size = 16777216",
+        "bulk-threads = 8",
+        "bulk-batch = 256",
+        "workers = 32",
+        "worker-queue = 256",
+        "bulk-workers = 4",
+        "extract-workers = 8",
+        "schema-sample = 0",
+        "schema-sampling = \"head\"",
+        "schema-upgrade = true");
 
     private static TomlTable parse(File siteCfg, File userCfg) {
         var base = new StringReader(fallback);
@@ -66,19 +104,106 @@ public class Configuration {
         }
     }
 
+    /** Read an integer, which is parsed as long by default. **/
+    private static int integer(TomlTable config, String key) {
+        return ((Number) config.get(key)).intValue();
+    }
+
+    /** Number of threads handling requests to each endpoint. **/
+    public Map<String, Integer> workers = new HashMap<>();
+    public int workerQueue;
+    /** Either "ipfs" or "local" for LocalFileSystem. **/
+    public String fsBackend;
+    public String fsLocalDir;
     public String ipfsMultiAddr;
     public String psqlUrl;
     public String psqlUser;
     public String psqlPasswd;
+    public int psqlStatementCache;
+    public int psqlBatchSize;
+    public long psqlBatchDelay;
+    public List<String> psqlReplicas = new ArrayList<>();
+    public String psqlReplicaRouting;
+    public long psqlReadYourWrites;
+    public long psqlStatementTimeout;
+    public double psqlMaxCost;
+    public long findCacheSize;
+    public int findCacheEntry;
+    public long contentCacheSize;
+    public int contentCacheWarm;
+    public String blockCacheDir;
+    public long blockCacheSize;
+    public long blockCacheHeap;
+    public String columnCacheDir;
+    public long columnCacheSize;
+    public int metadataThreads;
+    public int metadataQueue;
+    public long metadataCacheSize;
+    public int bulkThreads;
+    public int bulkBatch;
+    public int schemaSample;
+    public String schemaSampling;
+    public boolean schemaUpgrade;
 
     public Configuration() {
         var appdirs = AppDirsFactory.getInstance();
         var siteCfg = appdirs.getSiteConfigDir("comlake", null, null) + cfg;
         var userCfg = appdirs.getUserConfigDir("comlake", null, null) + cfg;
         var config = parse(new File(siteCfg), new File(userCfg));
+        for (var endpoint : ENDPOINTS) {
+            var key = endpoint + "-workers";
+            workers.put(endpoint, integer(config, config.get(key) == null
+                                                  ? "workers" : key));
+        }
+        workerQueue = integer(config, "worker-queue");
+        fsBackend = (String) config.get("fs-backend");
+        if (!FS_BACKENDS.contains(fsBackend))
+            throw new IllegalArgumentException(
+                "unknown fs-backend: " + fsBackend);
+        fsLocalDir = (String) config.get("fs-local-dir");
+        if (fsLocalDir == null)
+            fsLocalDir = appdirs.getUserDataDir("comlake", null, null)
+                + pathsep + "content";
         ipfsMultiAddr = (String) config.get("ipfs-multiaddr");
         psqlUrl = (String) config.get("psql-url");
         psqlUser = (String) config.get("psql-user");
         psqlPasswd = (String) config.get("psql-passwd");
+        psqlStatementCache = integer(config, "psql-statement-cache");
+        psqlBatchSize = integer(config, "psql-batch-size");
+        psqlBatchDelay = ((Number) config.get("psql-batch-delay")).longValue();
+        for (var url : (Iterable<?>) config.get("psql-replicas"))
+            psqlReplicas.add((String) url);
+        psqlReplicaRouting = (String) config.get("psql-replica-routing");
+        psqlReadYourWrites = ((Number) config.get("psql-read-your-writes"))
+            .longValue();
+        psqlStatementTimeout = ((Number) config.get("psql-statement-timeout"))
+            .longValue();
+        psqlMaxCost = ((Number) config.get("psql-max-cost")).doubleValue();
+        findCacheSize = ((Number) config.get("find-cache-size")).longValue();
+        findCacheEntry = integer(config, "find-cache-entry");
+        contentCacheSize = ((Number) config.get("content-cache-size"))
+            .longValue();
+        contentCacheWarm = integer(config, "content-cache-warm");
+        blockCacheDir = (String) config.get("block-cache-dir");
+        if (blockCacheDir == null)
+            blockCacheDir = appdirs.getUserCacheDir("comlake", null, null)
+                + pathsep + "blocks";
+        blockCacheSize = ((Number) config.get("block-cache-size")).longValue();
+        blockCacheHeap = ((Number) config.get("block-cache-heap")).longValue();
+        columnCacheDir = (String) config.get("column-cache-dir");
+        if (columnCacheDir == null)
+            columnCacheDir = appdirs.getUserCacheDir("comlake", null, null)
+                + pathsep + "columns";
+        columnCacheSize = ((Number) config.get("column-cache-size"))
+            .longValue();
+        metadataThreads = integer(config, "metadata-threads");
+        metadataQueue = integer(config, "metadata-queue");
+        metadataCacheSize = ((Number) config.get("metadata-cache-size"))
+            .longValue();
+        bulkThreads = integer(config, "bulk-threads");
+        bulkBatch = integer(config, "bulk-batch");
+        schemaSample = integer(config, "schema-sample");
+        schemaSampling = (String) config.get("schema-sampling");
+        schemaUpgrade = (Boolean) config.get("schema-upgrade");
     }
 }
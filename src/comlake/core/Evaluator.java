@@ -0,0 +1,606 @@
+/*
+ * Query AST evaluator
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import clojure.lang.AFn;
+import clojure.lang.PersistentVector;
+import clojure.lang.RT;
+import clojure.lang.Util;
+
+/**
+ * Query AST compiled into a tree of specialized nodes, callable on a row
+ * as a Clojure function.
+ *
+ * Besides the generic evaluation to a value, each node can be evaluated
+ * to a primitive double, where NaN stands for a missing or non-numeric
+ * value, and to a truth value, so that numeric comparisons and logical
+ * operations do not box their intermediate results.
+ *
+ * Strings are compared and computed with numbers as the numbers
+ * they represent, since every field of tabular data is a string.
+**/
+public abstract class Evaluator extends AFn {
+    /** Truth value of a null or an operation involving one. **/
+    public static final int NONE = -1;
+    public static final int FALSE = 0;
+    public static final int TRUE = 1;
+
+    /** Row able to look up numeric fields without boxing. **/
+    public interface Numeric {
+        /** Return the number in the given field, or NaN. **/
+        double number(Object key);
+    }
+
+    /** Evaluate to a value, which is null if an operand is missing. **/
+    public abstract Object eval(Object row);
+
+    /** Evaluate to a number, or NaN if that is not possible. **/
+    public double number(Object row) {
+        return toDouble(eval(row));
+    }
+
+    /** Evaluate to one of TRUE, FALSE and NONE. **/
+    public int truth(Object row) {
+        var value = eval(row);
+        if (value == null)
+            return NONE;
+        return Boolean.FALSE.equals(value) ? FALSE : TRUE;
+    }
+
+    public Object invoke(Object row) {
+        return eval(row);
+    }
+
+    /** Box the given truth value. **/
+    static Boolean box(int truth) {
+        return truth == NONE ? null : truth == TRUE;
+    }
+
+    /** Convert the given value to a number, or NaN if not applicable. **/
+    public static double toDouble(Object value) {
+        if (value instanceof Number)
+            return ((Number) value).doubleValue();
+        if (!(value instanceof String))
+            return Double.NaN;
+        var s = (String) value;
+        if (s.isEmpty())
+            return Double.NaN;
+        var c = s.charAt(0);
+        if (c != '-' && c != '.' && (c < '0' || c > '9'))
+            return Double.NaN;  // spare the exception in most cases
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    /** Convert the given value to a long, or null if not integral. **/
+    static Long toLong(Object value) {
+        if (value instanceof Long || value instanceof Integer
+            || value instanceof Short || value instanceof Byte)
+            return ((Number) value).longValue();
+        if (!(value instanceof String))
+            return null;
+        var s = (String) value;
+        for (var i = 0; i < s.length(); ++i) {
+            var c = s.charAt(i);
+            if ((c < '0' || c > '9') && (c != '-' || i > 0))
+                return null;
+        }
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Literal value. **/
+    private static class Constant extends Evaluator {
+        public Object value;
+        private double number;
+        private int truth;
+
+        public Constant(Object value) {
+            this.value = value;
+            number = toDouble(value);
+            truth = super.truth(null);
+        }
+
+        public Object eval(Object row) {
+            return value;
+        }
+
+        public double number(Object row) {
+            return number;
+        }
+
+        public int truth(Object row) {
+            return truth;
+        }
+    }
+
+    /** Current row. **/
+    private static class Row extends Evaluator {
+        public Object eval(Object row) {
+            return row;
+        }
+    }
+
+    /** Field getter, with the keys resolved in advance if literal. **/
+    private static class Getter extends Evaluator {
+        private Evaluator object;
+        private Evaluator[] fields;
+        private Object[] keys;
+
+        public Getter(Evaluator object, Evaluator[] fields) {
+            this.object = object;
+            this.fields = fields;
+            keys = new Object[fields.length];
+            for (var i = 0; i < fields.length; ++i) {
+                if (!(fields[i] instanceof Constant)) {
+                    keys = null;
+                    return;
+                }
+                keys[i] = ((Constant) fields[i]).value;
+                if (keys[i] == null) {
+                    keys = null;
+                    return;
+                }
+            }
+        }
+
+        public Object eval(Object row) {
+            var result = object.eval(row);
+            if (keys != null) {
+                for (var key : keys)
+                    if (result != null)
+                        result = RT.get(result, key);
+                return result;
+            }
+
+            var path = new Object[fields.length];
+            for (var i = 0; i < fields.length; ++i)
+                if ((path[i] = fields[i].eval(row)) == null)
+                    return null;
+            for (var key : path)
+                if (result != null)
+                    result = RT.get(result, key);
+            return result;
+        }
+
+        public double number(Object row) {
+            if (keys != null && keys.length == 1) {
+                var result = object.eval(row);
+                if (result instanceof Numeric)
+                    return ((Numeric) result).number(keys[0]);
+            }
+            return toDouble(eval(row));
+        }
+    }
+
+    /** Regular expression matcher, compiled in advance if literal. **/
+    private static class Matcher extends Evaluator {
+        private Evaluator string;
+        private Evaluator regex;
+        private Pattern pattern;
+
+        public Matcher(Evaluator string, Evaluator regex) {
+            this.string = string;
+            this.regex = regex;
+            if (regex instanceof Constant
+                && ((Constant) regex).value instanceof String)
+                pattern = Pattern.compile((String) ((Constant) regex).value);
+        }
+
+        /** Return the matcher of the given row, or null. **/
+        private java.util.regex.Matcher matcher(Object row) {
+            var s = string.eval(row);
+            if (!(s instanceof String))
+                return null;
+            var p = pattern;
+            if (p == null) {
+                var r = regex.eval(row);
+                if (!(r instanceof String))
+                    return null;
+                try {
+                    p = Pattern.compile((String) r);
+                } catch (PatternSyntaxException e) {
+                    return null;
+                }
+            }
+            var m = p.matcher((String) s);
+            return m.matches() ? m : null;
+        }
+
+        public int truth(Object row) {
+            return matcher(row) == null ? NONE : TRUE;
+        }
+
+        /** Return the match, with its groups if any. **/
+        public Object eval(Object row) {
+            var m = matcher(row);
+            if (m == null)
+                return null;
+            if (m.groupCount() == 0)
+                return m.group();
+            var groups = new ArrayList<Object>();
+            for (var i = 0; i <= m.groupCount(); ++i)
+                groups.add(m.group(i));
+            return PersistentVector.create(groups);
+        }
+    }
+
+    /**
+     * Arithmetic operation, folded from left to right.  The sum
+     * of only arrays is their concatenation, and so is the sum
+     * of only strings unless they all represent numbers.
+    **/
+    private static class Arithmetic extends Evaluator {
+        private char op;
+        private Evaluator[] args;
+        /** Whether the operands may all be strings to be concatenated. **/
+        private boolean concatenable;
+
+        public Arithmetic(char op, Evaluator[] args) {
+            this.op = op;
+            this.args = args;
+            concatenable = op == '+';
+            for (var arg : args)
+                if (arg instanceof Constant
+                    && !(((Constant) arg).value instanceof String))
+                    concatenable = false;
+        }
+
+        private double apply(double a, double b) {
+            switch (op) {
+            case '+':
+                return a + b;
+            case '-':
+                return a - b;
+            case '*':
+                return a * b;
+            case '/':
+                return a / b;
+            default:
+                return a % b;
+            }
+        }
+
+        private long apply(long a, long b) {
+            switch (op) {
+            case '+':
+                return Math.addExact(a, b);
+            case '-':
+                return Math.subtractExact(a, b);
+            case '*':
+                return Math.multiplyExact(a, b);
+            default:
+                return a % b;
+            }
+        }
+
+        public double number(Object row) {
+            var result = args[0].number(row);
+            if (args.length == 1)
+                result = op == '-' ? -result : op == '/' ? 1 / result : result;
+            for (var i = 1; i < args.length; ++i)
+                result = apply(result, args[i].number(row));
+            // Some operand is not a number, so they may be concatenated.
+            if (Double.isNaN(result) && concatenable)
+                return toDouble(eval(row));
+            return result;
+        }
+
+        /** Evaluate to a long if possible, otherwise null. **/
+        private Long integer(Object[] values) {
+            if (op == '/')
+                return null;
+            var operands = new long[values.length];
+            for (var i = 0; i < values.length; ++i) {
+                var operand = toLong(values[i]);
+                if (operand == null)
+                    return null;
+                operands[i] = operand;
+            }
+            try {
+                var result = operands[0];
+                if (values.length == 1)
+                    return op == '-' ? Math.negateExact(result) : result;
+                for (var i = 1; i < values.length; ++i)
+                    result = apply(result, operands[i]);
+                return result;
+            } catch (ArithmeticException e) {
+                return null;
+            }
+        }
+
+        public Object eval(Object row) {
+            var values = new Object[args.length];
+            var strings = true;
+            var numbers = true;
+            var lists = true;
+            for (var i = 0; i < args.length; ++i) {
+                var value = args[i].eval(row);
+                if (value == null)
+                    return null;
+                values[i] = value;
+                strings &= value instanceof String;
+                numbers &= !Double.isNaN(toDouble(value));
+                lists &= value instanceof List;
+            }
+
+            if (op == '+' && strings && !numbers) {
+                var result = new StringBuilder();
+                for (var value : values)
+                    result.append((String) value);
+                return result.toString();
+            }
+            if (op == '+' && lists) {
+                var result = new ArrayList<Object>();
+                for (var value : values)
+                    result.addAll((List<?>) value);
+                return PersistentVector.create(result);
+            }
+            var integer = integer(values);
+            if (integer != null)
+                return integer;
+
+            var result = toDouble(values[0]);
+            if (values.length == 1)
+                result = op == '-' ? -result : op == '/' ? 1 / result : result;
+            for (var i = 1; i < values.length; ++i)
+                result = apply(result, toDouble(values[i]));
+            return Double.isNaN(result) ? null : result;
+        }
+    }
+
+    /** Chained numeric comparison. **/
+    private static class Comparison extends Evaluator {
+        private String op;
+        private Evaluator[] args;
+
+        public Comparison(String op, Evaluator[] args) {
+            this.op = op;
+            this.args = args;
+        }
+
+        private boolean compare(double a, double b) {
+            switch (op) {
+            case ">":
+                return a > b;
+            case ">=":
+                return a >= b;
+            case "<":
+                return a < b;
+            default:
+                return a <= b;
+            }
+        }
+
+        public int truth(Object row) {
+            var result = TRUE;
+            var a = args[0].number(row);
+            if (Double.isNaN(a))
+                return NONE;
+            for (var i = 1; i < args.length; ++i) {
+                var b = args[i].number(row);
+                if (Double.isNaN(b))
+                    return NONE;
+                if (!compare(a, b))
+                    result = FALSE;
+                a = b;
+            }
+            return result;
+        }
+
+        public Object eval(Object row) {
+            return box(truth(row));
+        }
+    }
+
+    /** Chained (in)equality, comparing strings to numbers numerically. **/
+    private static class Equality extends Evaluator {
+        private boolean negated;
+        private Evaluator[] args;
+
+        public Equality(boolean negated, Evaluator[] args) {
+            this.negated = negated;
+            this.args = args;
+        }
+
+        private static boolean equal(Object a, Object b) {
+            if (a instanceof Number || b instanceof Number) {
+                if (a instanceof Boolean || b instanceof Boolean)
+                    return false;
+                var x = toDouble(a);
+                return x == toDouble(b);
+            }
+            return Util.equiv(a, b);
+        }
+
+        public int truth(Object row) {
+            var result = true;
+            var a = args[0].eval(row);
+            if (a == null)
+                return NONE;
+            for (var i = 1; i < args.length; ++i) {
+                var b = args[i].eval(row);
+                if (b == null)
+                    return NONE;
+                result &= equal(a, b);
+                a = b;
+            }
+            return result != negated ? TRUE : FALSE;
+        }
+
+        public Object eval(Object row) {
+            return box(truth(row));
+        }
+    }
+
+    /** Short-circuit conjunction or disjunction. **/
+    private static class Logic extends Evaluator {
+        private boolean conjunction;
+        private Evaluator[] args;
+
+        public Logic(boolean conjunction, Evaluator[] args) {
+            this.conjunction = conjunction;
+            this.args = args;
+        }
+
+        public int truth(Object row) {
+            for (var arg : args)
+                if ((arg.truth(row) == TRUE) != conjunction)
+                    return conjunction ? FALSE : TRUE;
+            return conjunction ? TRUE : FALSE;
+        }
+
+        public Object eval(Object row) {
+            return box(truth(row));
+        }
+    }
+
+    /** Logical negation. **/
+    private static class Negation extends Evaluator {
+        private Evaluator arg;
+
+        public Negation(Evaluator arg) {
+            this.arg = arg;
+        }
+
+        public int truth(Object row) {
+            var truth = arg.truth(row);
+            return truth == NONE ? NONE : TRUE - truth;
+        }
+
+        public Object eval(Object row) {
+            return box(truth(row));
+        }
+    }
+
+    /** Check if two collections have any element in common. **/
+    private static class Intersection extends Evaluator {
+        private Evaluator left;
+        private Evaluator right;
+
+        public Intersection(Evaluator left, Evaluator right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public int truth(Object row) {
+            var a = left.eval(row);
+            var b = right.eval(row);
+            if (!(a instanceof Collection) || !(b instanceof Collection))
+                return NONE;
+            for (var x : (Collection<?>) a)
+                for (var y : (Collection<?>) b)
+                    if (Util.equiv(x, y))
+                        return TRUE;
+            return FALSE;
+        }
+
+        public Object eval(Object row) {
+            return box(truth(row));
+        }
+    }
+
+    /**
+     * Compile the given query AST, or return null if it is invalid.
+     * Arrays not starting with an operator are literals.
+    **/
+    public static Evaluator compile(Object ast) {
+        if (!(ast instanceof List) || ((List<?>) ast).isEmpty()
+            || !(((List<?>) ast).get(0) instanceof String))
+            return new Constant(ast);
+        var list = (List<?>) ast;
+        var op = (String) list.get(0);
+        var n = list.size() - 1;
+        switch (op) {
+        case "$":
+        case ".":
+        case "~":
+        case "+":
+        case "-":
+        case "*":
+        case "/":
+        case "%":
+        case "==":
+        case "!=":
+        case ">":
+        case ">=":
+        case "<":
+        case "<=":
+        case "&&":
+        case "&":
+        case "|":
+        case "!":
+            break;
+        default:
+            return new Constant(ast);
+        }
+
+        var args = new Evaluator[n];
+        for (var i = 0; i < n; ++i)
+            if ((args[i] = compile(list.get(i + 1))) == null)
+                return null;
+        try {
+            switch (op) {
+            case "$":
+                return n == 0 ? new Row() : null;
+            case ".":
+                if (n < 2)
+                    return null;
+                return new Getter(args[0], Arrays.copyOfRange(args, 1, n));
+            case "~":
+                return n == 2 ? new Matcher(args[0], args[1]) : null;
+            case "%":
+                return n == 2 ? new Arithmetic('%', args) : null;
+            case "+":
+            case "-":
+            case "*":
+            case "/":
+                return n > 0 ? new Arithmetic(op.charAt(0), args) : null;
+            case "==":
+            case "!=":
+                return n > 1 ? new Equality(op.equals("!="), args) : null;
+            case "&&":
+                return n == 2 ? new Intersection(args[0], args[1]) : null;
+            case "&":
+            case "|":
+                return new Logic(op.equals("&"), args);
+            case "!":
+                return n == 1 ? new Negation(args[0]) : null;
+            default:
+                return n > 1 ? new Comparison(op, args) : null;
+            }
+        } catch (PatternSyntaxException e) {
+            return null;
+        }
+    }
+}
@@ -19,16 +19,28 @@
 
 package comlake.core;
 
+import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.IOException;
 import java.math.BigInteger;
+import java.net.URLDecoder;
+import java.nio.file.Files;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 import clojure.java.api.Clojure;
 import clojure.lang.IFn;
@@ -36,34 +48,100 @@ import clojure.lang.IFn;
 import com.google.gson.Gson;
 
 import comlake.core.db.Database;
+import comlake.core.db.Query;
+import comlake.core.db.QueryRejected;
+import comlake.core.extract.ColumnCache;
+import comlake.core.extract.ColumnStore;
+import comlake.core.extract.Extraction;
 import comlake.core.fs.FileSystem;
 
 public class HttpHandler {
+    static final int DEFAULT_PAGE = 100;
+    static final int MAX_PAGE = 10000;
+    /** Most fields to be projected, within PostgreSQL's argument limit. **/
+    static final int MAX_FIELDS = 50;
+    static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
     static final Gson gson = new Gson();
     static final IFn require = Clojure.var("clojure.core", "require");
+    static final IFn writeJson = Clojure.var("clojure.data.json", "write-str");
+    /** Cookie marking clients which have just written. **/
+    static final String WROTE = "comlake-wrote";
 
     private IFn parseAst;
-    private IFn parseAstFn;
+    private IFn parseExtraction;
     private IFn extractData;
+    private IFn extractLocal;
+    private IFn buildColumns;
     private IFn extractMetadata;
     private FileSystem fs;
     private Database db;
+    private ColumnCache columns;
+    private TaskCache<Object, Object> metadata;
+    private ExecutorService bulkExecutor;
+    private int bulkBatch;
+    private String wroteCookie;
+    private Metrics metrics;
 
-    public HttpHandler(FileSystem filesystem, Database database) {
+    /**
+     * Construct a handler over the given storage, also serving extraction
+     * from columnar copies of structured content if they are enabled
+     * in the configuration, and the given metrics.
+    **/
+    public HttpHandler(FileSystem filesystem, Database database,
+                       Configuration cfg, Metrics metrics) throws IOException {
         fs = filesystem;
         db = database;
+        this.metrics = metrics;
+        if (cfg.columnCacheSize > 0)
+            columns = new ColumnCache(cfg.columnCacheDir, cfg.columnCacheSize);
+        metadata = new TaskCache<>("metadata", cfg.metadataThreads,
+                                   cfg.metadataQueue, cfg.metadataCacheSize,
+                                   result -> result.toString().length());
+        metrics.gauge("comlake_metadata_queue_depth",
+                      "Metadata extractions waiting for a thread", "",
+                      metadata::queueDepth);
+        metrics.gauge("comlake_metadata_active",
+                      "Metadata extractions being run", "",
+                      metadata::active);
+        metrics.counter("comlake_metadata_completed_total",
+                        "Finished metadata extractions", "",
+                        metadata::completed);
+        metrics.counter("comlake_metadata_rejected_total",
+                        "Metadata extractions rejected for a full queue", "",
+                        metadata::rejected);
+        metrics.counter("comlake_metadata_wait_seconds_total",
+                        "Time metadata extractions spent queued", "",
+                        () -> metadata.waitTime() / 1e9);
+        metrics.counter("comlake_metadata_run_seconds_total",
+                        "Time metadata extractions spent running", "",
+                        () -> metadata.runTime() / 1e9);
+        var count = new AtomicInteger();
+        bulkExecutor = Executors.newFixedThreadPool(cfg.bulkThreads, task -> {
+            var thread = new Thread(task, "bulk-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        bulkBatch = cfg.bulkBatch;
+        if (!cfg.psqlReplicas.isEmpty() && cfg.psqlReadYourWrites > 0)
+            wroteCookie = String.format(
+                "%s=1; Max-Age=%d; Path=/; HttpOnly", WROTE,
+                (cfg.psqlReadYourWrites + 999) / 1000);
 
         require.invoke(Clojure.read("comlake.core.qast"));
         parseAst = Clojure.var("comlake.core.qast", "json->psql");
-        parseAstFn = Clojure.var("comlake.core.qast", "json->fn");
+        parseExtraction = Clojure.var("comlake.core.qast", "json->extraction");
 
         require.invoke(Clojure.read("comlake.core.extract.data"));
         extractData = Clojure.var("comlake.core.extract.data", "extract-data");
+        extractLocal = Clojure.var("comlake.core.extract.data",
+                                   "extract-local");
+        buildColumns = Clojure.var("comlake.core.extract.data",
+                                   "build-columns");
 
         require.invoke(Clojure.read("comlake.core.extract.metadata"));
         var extractor = Clojure.var("comlake.core.extract.metadata",
                                     "metadata-extractor");
-        extractMetadata = (IFn) extractor.invoke(fs, db);
+        extractMetadata = (IFn) extractor.invoke(fs, db, metadata, cfg);
     }
 
     /** Construct a Ring response. **/
@@ -79,6 +157,28 @@ public class HttpHandler {
         return Map.of("Content-Type", type);
     }
 
+    /**
+     * Construct headers of a JSON response to a write, which marks
+     * the client to read its writes if there are read replicas.
+    **/
+    Map written() {
+        if (wroteCookie == null)
+            return contentType("application/json");
+        return Map.of("Content-Type", "application/json",
+                      "Set-Cookie", wroteCookie);
+    }
+
+    /** Check if the client has just written according to its cookies. **/
+    static boolean wrote(Map<String, String> headers) {
+        var cookies = headers.get("cookie");
+        if (cookies == null)
+            return false;
+        for (var cookie : cookies.split(";"))
+            if (cookie.strip().startsWith(WROTE + "="))
+                return true;
+        return false;
+    }
+
     /** Wrap given error string in a Ring JSON response. **/
     public static Map error(Object err, int status) {
         var body = gson.toJson(Map.of("error", err));
@@ -95,12 +195,18 @@ public class HttpHandler {
         return error(err, 400);
     }
 
+    /** Respond with the metrics in Prometheus text format. **/
+    public Map metrics() {
+        return respond(200, contentType("text/plain; version=0.0.4"),
+                       metrics.scrape());
+    }
+
     /** Create and return an empty directory. **/
     public Map mkdir() {
         var cid = fs.mkdir();
         db.insertDirectory(cid); // TODO: check status
         var json = gson.toJson(Map.of("cid", cid));
-        return respond(200, contentType("application/json"), json);
+        return respond(200, written(), json);
     }
 
     /** Write file to underlying file system. **/
@@ -112,23 +218,64 @@ public class HttpHandler {
 
         var type = headers.get("content-type"); // TODO: check null
         db.insertFile(cid, type); // TODO: check status
-        extractMetadata.invoke(cid, type);
+        try {
+            extractMetadata.invoke(cid, type);
+        } catch (RejectedExecutionException e) {
+            // Left to be extracted on demand
+        }
 
         var json = gson.toJson(Map.of("cid", cid));
-        return respond(200, contentType("application/json"), json);
+        return respond(200, written(), json);
+    }
+
+    /**
+     * Ingest newline-delimited items of files and datasets,
+     * streaming back the result of each item in order.
+    **/
+    public Map bulk(InputStream body) {
+        var reader = new BufferedReader(new InputStreamReader(body, UTF_8));
+        var items = new BulkIngest(reader, fs, db, bulkExecutor,
+                                   extractMetadata, bulkBatch);
+        return respond(200, written(),
+                       new JsonArrayStream(items, reader));
     }
 
-    /** Copy file inside a directory. **/
+    /**
+     * Copy file inside a directory, or many files given as pairs
+     * of src and path at once.
+    **/
     public Map cp(InputStream body) {
         var reader = new InputStreamReader(body);
-        var args = (Map<String, String>) gson.fromJson(reader, Map.class);
-        var cid = fs.cp(args.get("src"), args.get("dest"), args.get("path"));
+        var args = (Map<String, Object>) gson.fromJson(reader, Map.class);
+        var dest = (String) args.get("dest");
+        String cid;
+        if (args.containsKey("files")) {
+            var files = args.get("files");
+            if (!(files instanceof List))
+                return error("malformed files");
+            var sources = new LinkedHashMap<String, String>();
+            for (var file : (List<?>) files) {
+                if (!(file instanceof Map))
+                    return error("malformed files");
+                var path = ((Map<?, ?>) file).get("path");
+                var src = ((Map<?, ?>) file).get("src");
+                // Each path can only be copied to once.
+                if (!(path instanceof String) || !(src instanceof String)
+                    || sources.put((String) path, (String) src) != null)
+                    return error("malformed files");
+            }
+            cid = fs.cp(dest, sources);
+        } else {
+            cid = fs.cp((String) args.get("src"), dest,
+                        (String) args.get("path"));
+        }
         if (cid == null)
-            return error("dest is not a directory");
+            return error(dest == null || fs.ls(dest) == null
+                         ? "dest is not a directory" : "failed to copy");
 
         db.insertDirectory(cid); // TODO: check status
         var json = gson.toJson(Map.of("cid", cid));
-        return respond(200, contentType("application/json"), json);
+        return respond(200, written(), json);
     }
 
     /** Ingest data from the given request and return appropriate response. **/
@@ -146,7 +293,7 @@ public class HttpHandler {
             return error(null);
 
         var json = gson.toJson(Map.of("id", id));
-        return respond(200, contentType("application/json"), json);
+        return respond(200, written(), json);
     }
 
     /** Ingest data from the given request and return appropriate response. **/
@@ -161,20 +308,79 @@ public class HttpHandler {
             return error(null);
 
         var json = gson.toJson(Map.of("id", id));
-        return respond(200, contentType("application/json"), json);
+        return respond(200, written(), json);
+    }
+
+    /** Parse URL query string into a map of parameters. **/
+    static Map<String, String> parameters(String query) {
+        var result = new HashMap<String, String>();
+        if (query == null)
+            return result;
+        for (var pair : query.split("&")) {
+            var i = pair.indexOf('=');
+            if (i < 0)
+                result.put(URLDecoder.decode(pair, UTF_8), "");
+            else
+                result.put(URLDecoder.decode(pair.substring(0, i), UTF_8),
+                           URLDecoder.decode(pair.substring(i + 1), UTF_8));
+        }
+        return result;
     }
 
-    /** Return query result as a http response. **/
-    public Map find(InputStream ast) {
-        var predicate = (String) parseAst.invoke(new InputStreamReader(ast));
+    /**
+     * Return query result as a http response.
+     *
+     * The result is paged if either the page size (limit)
+     * or the continuation token (after) is given in the URL query string.
+     * Only the comma-separated fields are returned if given.
+     * Clients which have just written are served from the primary database.
+    **/
+    public Map find(InputStream ast, String queryString,
+                    Map<String, String> headers) {
+        var predicate = (List<Object>) parseAst.invoke(
+            new InputStreamReader(ast));
         if (predicate == null)
             return error("malformed query");
 
-        var result = db.search(predicate);
-        if (result == null)
-            return error("failed query");
+        var params = parameters(queryString);
+        var query = new Query((String) predicate.get(0),
+                              predicate.subList(1, predicate.size()));
+        if (params.containsKey("limit") || params.containsKey("after")) {
+            try {
+                query.limit = Integer.parseInt(
+                    params.getOrDefault("limit", String.valueOf(DEFAULT_PAGE)));
+            } catch (NumberFormatException e) {
+                return error("malformed limit");
+            }
+            if (query.limit < 1 || query.limit > MAX_PAGE)
+                return error("malformed limit");
+
+            if (params.containsKey("after")) {
+                var after = Query.parseToken(params.get("after"));
+                if (after == null)
+                    return error("malformed token");
+                query.after = after;
+            }
+        }
 
-        var body = gson.toJson(result);
+        if (params.containsKey("fields")) {
+            var fields = List.of(params.get("fields").split(",", -1));
+            if (fields.size() > MAX_FIELDS || fields.contains(""))
+                return error("malformed fields");
+            query.fields = fields;
+        }
+
+        query.fresh = wrote(headers);
+        InputStream body;
+        try {
+            body = db.search(query);
+        } catch (QueryRejected e) {
+            return error(e.getMessage(),
+                         e.reason == QueryRejected.Reason.EXPENSIVE ? 422
+                                                                    : 503);
+        }
+        if (body == null)
+            return error("failed query");
         return respond(200, contentType("application/json"), body);
     }
 
@@ -188,21 +394,110 @@ public class HttpHandler {
         return respond(200, contentType("application/json"), body);
     }
 
+    /**
+     * Parse the first and last byte positions of a single range
+     * in the given Range header.  Return null if the header
+     * is malformed or contains multiple ranges, which are to be ignored,
+     * or an empty array if the range is unsatisfiable.
+    **/
+    static long[] range(String header, long size) {
+        var matcher = RANGE.matcher(header.strip());
+        if (!matcher.matches())
+            return null;
+        try {
+            var first = matcher.group(1);
+            var last = matcher.group(2);
+            if (first.isEmpty()) {
+                if (last.isEmpty())
+                    return null;
+                var suffix = Long.parseLong(last);
+                if (suffix == 0 || size == 0)
+                    return new long[0];
+                return new long[] {Math.max(size - suffix, 0), size - 1};
+            }
+
+            var start = Long.parseLong(first);
+            var end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (end < start)
+                return null;
+            if (start >= size)
+                return new long[0];
+            return new long[] {start, Math.min(end, size - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
     /**
      * Forward content from underlying distributed filesystem
      * as a Ring response.
+     *
+     * Content available locally is sent as a file, to be written
+     * to the socket directly by the kernel, and byte ranges of it
+     * can be requested via the Range header.
     **/
-    public Map get(String cid) {
-        var body = fs.fetch(cid);
-        if (body == null)
-            return error("content not found", 404);
-        return respond(200, contentType("application/octet-stream"), body);
+    public Map get(String cid, Map<String, String> headers) {
+        var etag = "\"" + cid + "\"";
+        var path = fs.local(cid);
+        // Only known content may be reported as unmodified.
+        if (etag.equals(headers.get("if-none-match"))
+            && (path != null || db.getType(cid) != null))
+            return respond(304, Map.of("ETag", etag), "");
+
+        if (path == null) {
+            var body = fs.fetch(cid);
+            if (body == null)
+                return error("content not found", 404);
+            return respond(200, Map.of(
+                "Content-Type", "application/octet-stream",
+                "ETag", etag), body);
+        }
+
+        long size;
+        try {
+            size = Files.size(path);
+        } catch (IOException e) {
+            return error(null);
+        }
+        var header = headers.get("range");
+        var ifRange = headers.get("if-range");
+        var bounds = header == null || ifRange != null && !ifRange.equals(etag)
+            ? null : range(header, size);
+        if (bounds == null)
+            return respond(200, Map.of(
+                "Content-Type", "application/octet-stream",
+                "Content-Length", String.valueOf(size),
+                "Accept-Ranges", "bytes",
+                "ETag", etag), path.toFile());
+        if (bounds.length == 0)
+            return respond(416, Map.of("Content-Range", "bytes */" + size,
+                                       "ETag", etag), "");
+
+        try {
+            var start = bounds[0];
+            var end = bounds[1] + 1;
+            var body = ChannelSlice.open(path, start, end);
+            return respond(206, Map.of(
+                "Content-Type", "application/octet-stream",
+                "Content-Length", String.valueOf(end - start),
+                "Content-Range", String.format("bytes %d-%d/%d",
+                                               start, end - 1, size),
+                "Accept-Ranges", "bytes",
+                "ETag", etag), body);
+        } catch (IOException e) {
+            return error(null);
+        }
     }
 
     /** Respond with the file schema if it is (semi-)strutured. **/
     public Map schema(String cid) {
         var type = db.getType(cid);
-        var future = (Future<String>) extractMetadata.invoke(cid, type);
+        Future<String> future;
+        try {
+            future = (Future<String>) extractMetadata.invoke(cid, type);
+        } catch (RejectedExecutionException e) {
+            return error("too many pending extractions", 503);
+        }
         try {
             var schema = future.get();
             if (schema == null)
@@ -215,16 +510,60 @@ public class HttpHandler {
         }
     }
 
-    /** Respond with extracted content from (semi-)structured data. **/
+    /**
+     * Respond with extracted content from (semi-)structured data,
+     * streamed as the content is being read.  Large tables available
+     * locally are scanned in parallel instead.
+     *
+     * The first extraction schedules building a columnar copy
+     * of the content, which serves later ones without parsing.
+     * Aggregation and ordering are done in the same pass as filtering,
+     * so only their results are sent.
+    **/
     public Map extract(String cid, InputStream ast) {
-        var predicate = (IFn) parseAstFn.invoke(new InputStreamReader(ast));
-        if (predicate == null)
+        var query = (Extraction) parseExtraction.invoke(
+            new InputStreamReader(ast));
+        if (query == null)
             return error("malformed query");
 
-        var body = extractData.invoke(predicate, db.getType(cid),
-                                      new InputStreamReader(fs.fetch(cid)));
-        if (body == null)
+        var type = db.getType(cid);
+        if (columns != null) {
+            var store = columns.get(cid);
+            if (store != null) {
+                var rows = query.filterOnly() ? store.scan(query.where)
+                    : query.apply(store.rows(query.where),
+                                  ColumnStore.encoder(writeJson));
+                return respond(200, contentType("application/json"),
+                               new JsonArrayStream(rows, null));
+            }
+            buildColumns.invoke(columns, cid, type, fs, db);
+        }
+        if ("text/csv".equals(type)) {
+            var path = fs.local(cid);
+            if (path != null) {
+                var rows = (Iterator<String>) extractLocal.invoke(
+                    query, type, path);
+                if (rows != null)
+                    return respond(200, contentType("application/json"),
+                                   new JsonArrayStream(
+                                       rows, (AutoCloseable) rows));
+            }
+        }
+
+        var content = fs.fetch(cid);
+        if (content == null)
+            return error("content not found", 404);
+        var reader = new InputStreamReader(content);
+        var rows = (Iterable<String>) extractData.invoke(query, type, reader);
+        if (rows == null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // Nothing has been read anyway.
+            }
             return error("failed query");
-        return respond(200, contentType("application/json"), body);
+        }
+        return respond(200, contentType("application/json"),
+                       new JsonArrayStream(rows.iterator(), reader));
     }
 }
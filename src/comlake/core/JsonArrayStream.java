@@ -0,0 +1,121 @@
+/*
+ * Lazily encoded JSON array stream
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.function.Supplier;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Input stream of a JSON array whose elements are pulled
+ * from the given iterator only as the stream is being read.
+ *
+ * The array may be wrapped between a prefix and a suffix,
+ * the latter of which is only evaluated after the last element.
+ * The resource is released once the last element is consumed
+ * or when the stream is closed, whichever comes first.
+**/
+public class JsonArrayStream extends InputStream {
+    private static final byte[] EMPTY = {};
+
+    private Iterator<String> elements;
+    private Supplier<String> suffix;
+    private AutoCloseable resource;
+    private byte[] chunk;
+    private int position = 0;
+    private boolean first = true;
+    private boolean done = false;
+
+    public JsonArrayStream(Iterator<String> elements, AutoCloseable resource) {
+        this("", elements, () -> "", resource);
+    }
+
+    public JsonArrayStream(String prefix, Iterator<String> elements,
+                           Supplier<String> suffix, AutoCloseable resource) {
+        this.chunk = (prefix + "[").getBytes(UTF_8);
+        this.elements = elements;
+        this.suffix = suffix;
+        this.resource = resource;
+    }
+
+    /** Encode the next chunk, return false at the end of the array. **/
+    private boolean advance() throws IOException {
+        if (done)
+            return false;
+        try {
+            if (elements.hasNext()) {
+                var element = elements.next();
+                chunk = (first ? element : "," + element).getBytes(UTF_8);
+                first = false;
+            } else {
+                chunk = ("]" + suffix.get()).getBytes(UTF_8);
+                done = true;
+                close();
+            }
+        } catch (RuntimeException e) {
+            chunk = EMPTY;
+            done = true;
+            close();
+            throw new IOException(e);
+        }
+        position = 0;
+        return true;
+    }
+
+    public int read() throws IOException {
+        while (position == chunk.length)
+            if (!advance())
+                return -1;
+        return chunk[position++] & 0xff;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+        var n = 0;
+        // Fill the buffer with as many elements as possible
+        // instead of handing out tiny chunks one row at a time.
+        while (n < len) {
+            if (position == chunk.length && !advance())
+                break;
+            var size = Math.min(len - n, chunk.length - position);
+            System.arraycopy(chunk, position, b, off + n, size);
+            position += size;
+            n += size;
+        }
+        return n == 0 ? -1 : n;
+    }
+
+    public void close() throws IOException {
+        if (resource == null)
+            return;
+        try {
+            resource.close();
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        } finally {
+            resource = null;
+        }
+    }
+}
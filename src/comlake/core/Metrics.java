@@ -0,0 +1,290 @@
+/*
+ * Metrics registry
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Registry of metrics, exposed in Prometheus text format.
+ *
+ * Metrics are created once and recorded to without allocation:
+ * counters and gauges are backed by LongAdder and histograms
+ * by a fixed array of them.  Values owned by other components
+ * are read through suppliers only when scraped.
+**/
+public class Metrics {
+    /** Upper bounds of latency histogram buckets in seconds. **/
+    private static final double[] BUCKETS = {
+        0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+        0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final double NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /** Monotonic counter, or a gauge which can also go down. **/
+    public static class Counter {
+        private LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void decrement() {
+            value.decrement();
+        }
+
+        public void add(long n) {
+            value.add(n);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /** Histogram of durations in nanoseconds, exposed in seconds. **/
+    public static class Histogram {
+        private long[] bounds = new long[BUCKETS.length];
+        private LongAdder[] counts = new LongAdder[BUCKETS.length + 1];
+        private LongAdder sum = new LongAdder();
+
+        public Histogram() {
+            for (var i = 0; i < BUCKETS.length; ++i)
+                bounds[i] = (long) (BUCKETS[i] * NANOS);
+            for (var i = 0; i < counts.length; ++i)
+                counts[i] = new LongAdder();
+        }
+
+        /** Record the given duration in nanoseconds. **/
+        public void record(long nanos) {
+            var i = 0;
+            while (i < bounds.length && nanos > bounds[i])
+                i++;
+            counts[i].increment();
+            sum.add(nanos);
+        }
+
+        /** Record the time elapsed since the given System.nanoTime. **/
+        public void since(long start) {
+            record(System.nanoTime() - start);
+        }
+    }
+
+    /** Latency and concurrency of the requests to an endpoint. **/
+    public static class Route {
+        private Histogram latency;
+        private Counter inFlight;
+
+        private Route(Histogram latency, Counter inFlight) {
+            this.latency = latency;
+            this.inFlight = inFlight;
+        }
+
+        /** Mark a request as started and return its start time. **/
+        public long start() {
+            inFlight.increment();
+            return System.nanoTime();
+        }
+
+        /** Mark the request started at the given time as done. **/
+        public void done(long start) {
+            latency.since(start);
+            inFlight.decrement();
+        }
+    }
+
+    /** Input stream counting the bytes read from it. **/
+    private static class Counting extends FilterInputStream {
+        private Counter counter;
+
+        public Counting(InputStream in, Counter counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        public int read() throws IOException {
+            var b = super.read();
+            if (b >= 0)
+                counter.increment();
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            var n = super.read(b, off, len);
+            if (n > 0)
+                counter.add(n);
+            return n;
+        }
+    }
+
+    /** Metrics of the same name, with different labels. **/
+    private static class Family {
+        public String help;
+        public String type;
+        public Map<String, Object> samples = new LinkedHashMap<>();
+
+        public Family(String help, String type) {
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private Map<String, Family> families = new LinkedHashMap<>();
+    private Counter streamed;
+
+    public Metrics() {
+        streamed = counter("comlake_http_response_bytes_total",
+                           "Bytes of response bodies sent as files or streams",
+                           "");
+    }
+
+    /** Format a label pair for the given name and value. **/
+    public static String label(String name, String value) {
+        return name + "=\"" + value.replace("\\", "\\\\")
+            .replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+
+    /**
+     * Register a sample of the named metric with the given labels,
+     * either in the format of label, or empty, and return it.
+    **/
+    private synchronized <T> T register(String name, String help,
+                                        String type, String labels,
+                                        T sample) {
+        var family = families.computeIfAbsent(
+            name, key -> new Family(help, type));
+        if (!family.type.equals(type))
+            throw new IllegalArgumentException(name + " is a " + family.type);
+        if (family.samples.putIfAbsent(labels, sample) != null)
+            throw new IllegalArgumentException(
+                "duplicate sample " + name + "{" + labels + "}");
+        return sample;
+    }
+
+    /** Register and return a counter. **/
+    public Counter counter(String name, String help, String labels) {
+        return register(name, help, "counter", labels, new Counter());
+    }
+
+    /** Register a counter read from the given supplier. **/
+    public void counter(String name, String help, String labels,
+                        DoubleSupplier value) {
+        register(name, help, "counter", labels, value);
+    }
+
+    /** Register and return a gauge. **/
+    public Counter gauge(String name, String help, String labels) {
+        return register(name, help, "gauge", labels, new Counter());
+    }
+
+    /** Register a gauge read from the given supplier. **/
+    public void gauge(String name, String help, String labels,
+                      DoubleSupplier value) {
+        register(name, help, "gauge", labels, value);
+    }
+
+    /** Register and return a histogram of durations. **/
+    public Histogram histogram(String name, String help, String labels) {
+        return register(name, help, "histogram", labels, new Histogram());
+    }
+
+    /** Register and return the metrics of the given endpoint. **/
+    public Route route(String endpoint) {
+        var labels = label("endpoint", endpoint);
+        return new Route(
+            histogram("comlake_http_request_duration_seconds",
+                      "Time to respond to requests, excluding streaming",
+                      labels),
+            gauge("comlake_http_requests_in_flight",
+                  "Requests being handled", labels));
+    }
+
+    /**
+     * Count the bytes of the given response body as they are sent,
+     * returning the body to be sent instead.
+    **/
+    public Object stream(Object body) {
+        if (body instanceof InputStream)
+            return new Counting((InputStream) body, streamed);
+        if (body instanceof File)
+            streamed.add(((File) body).length());
+        return body;
+    }
+
+    private static void sample(StringBuilder out, String name,
+                               String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty())
+            out.append('{').append(labels).append('}');
+        out.append(' ');
+        if (value == (long) value)
+            out.append((long) value);
+        else
+            out.append(value);
+        out.append('\n');
+    }
+
+    private static String join(String labels, String label) {
+        return labels.isEmpty() ? label : labels + "," + label;
+    }
+
+    /** Return all metrics in Prometheus text format. **/
+    public synchronized String scrape() {
+        var out = new StringBuilder();
+        for (var entry : families.entrySet()) {
+            var name = entry.getKey();
+            var family = entry.getValue();
+            out.append("# HELP ").append(name).append(' ')
+                .append(family.help).append('\n');
+            out.append("# TYPE ").append(name).append(' ')
+                .append(family.type).append('\n');
+            for (var sample : family.samples.entrySet()) {
+                var labels = sample.getKey();
+                var value = sample.getValue();
+                if (value instanceof Counter) {
+                    sample(out, name, labels, ((Counter) value).get());
+                } else if (value instanceof DoubleSupplier) {
+                    sample(out, name, labels,
+                           ((DoubleSupplier) value).getAsDouble());
+                } else {
+                    var histogram = (Histogram) value;
+                    var count = 0L;
+                    for (var i = 0; i < histogram.counts.length; ++i) {
+                        count += histogram.counts[i].sum();
+                        var bound = i < BUCKETS.length
+                            ? String.valueOf(BUCKETS[i]) : "+Inf";
+                        sample(out, name + "_bucket",
+                               join(labels, label("le", bound)), count);
+                    }
+                    sample(out, name + "_sum", labels,
+                           histogram.sum.sum() / NANOS);
+                    sample(out, name + "_count", labels, count);
+                }
+            }
+        }
+        return out.toString();
+    }
+}
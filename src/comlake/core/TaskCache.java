@@ -0,0 +1,148 @@
+/*
+ * Bounded executor of cached tasks
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Executor of keyed tasks on a fixed number of threads with a bounded
+ * queue, caching their results.  Tasks submitted with the key of one
+ * in flight share its result instead of being run again.
+**/
+public class TaskCache<K, V> {
+    private Cache<K, V> cache;
+    private ConcurrentHashMap<K, CompletableFuture<V>> running;
+    private ThreadPoolExecutor executor;
+    private LongAdder completed = new LongAdder();
+    private LongAdder rejected = new LongAdder();
+    private LongAdder waiting = new LongAdder();
+    private LongAdder working = new LongAdder();
+
+    /**
+     * Run tasks on the given number of threads named after name,
+     * queueing at most queueLimit of them, and cache their non-null
+     * results up to the total weight capacity.
+    **/
+    public TaskCache(String name, int threads, int queueLimit,
+                     long capacity, ToLongFunction<V> weigher) {
+        cache = new Cache<K, V>(capacity, weigher);
+        running = new ConcurrentHashMap<>();
+        var count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(
+            threads, threads, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(queueLimit), task -> {
+                var thread = new Thread(task,
+                                        name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+    }
+
+    /**
+     * Return the future result of the task of the given key,
+     * either cached, in flight or newly submitted.
+     *
+     * @throws RejectedExecutionException if the queue is full
+    **/
+    public CompletableFuture<V> submit(K key, Callable<V> task) {
+        var cached = cache.get(key);
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
+        var future = new CompletableFuture<V>();
+        var flight = running.putIfAbsent(key, future);
+        if (flight != null)
+            return flight;
+
+        var queued = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                var started = System.nanoTime();
+                waiting.add(started - queued);
+                try {
+                    var result = task.call();
+                    if (result != null)
+                        cache.put(key, result);
+                    future.complete(result);
+                } catch (Exception e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    running.remove(key, future);
+                    working.add(System.nanoTime() - started);
+                    completed.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.remove(key, future);
+            rejected.increment();
+            future.completeExceptionally(e);
+            throw e;
+        }
+        return future;
+    }
+
+    /** Drop the cached result of the given key. **/
+    public void invalidate(K key) {
+        cache.remove(key);
+    }
+
+    /** Return the number of tasks waiting in the queue. **/
+    public int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /** Return the number of tasks being run. **/
+    public int active() {
+        return executor.getActiveCount();
+    }
+
+    /** Return the number of finished tasks. **/
+    public long completed() {
+        return completed.sum();
+    }
+
+    /** Return the number of tasks rejected for a full queue. **/
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    /** Return the total time finished tasks spent queued, in nanoseconds. **/
+    public long waitTime() {
+        return waiting.sum();
+    }
+
+    /** Return the total time finished tasks spent running, in nanoseconds. **/
+    public long runTime() {
+        return working.sum();
+    }
+
+    /** Return the number of cached results. **/
+    public int size() {
+        return cache.size();
+    }
+}
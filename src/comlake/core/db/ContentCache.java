@@ -0,0 +1,201 @@
+/*
+ * Content metadata cache
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.db;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import comlake.core.Cache;
+import comlake.core.db.Database;
+
+/**
+ * Database decorator caching the type and schema of each content.
+ *
+ * These only change through insertFile and setSchema, which drop
+ * the cached entry.  Lookups racing with a write do not cache
+ * what they read, since it might be outdated.
+**/
+public class ContentCache implements Database {
+    /** Approximate overhead of an entry in bytes. **/
+    private static final int OVERHEAD = 64;
+
+    /** Cached metadata of a content, intended for read-only use. **/
+    private static class Entry {
+        /** Content type, or null if not looked up yet. **/
+        public String type;
+        /** Content schema, which may be null even if looked up. **/
+        public String schema;
+        /** Whether the schema has been looked up. **/
+        public boolean schemaKnown;
+
+        public Entry(String type, String schema, boolean schemaKnown) {
+            this.type = type;
+            this.schema = schema;
+            this.schemaKnown = schemaKnown;
+        }
+
+        public long weight() {
+            return OVERHEAD + (type == null ? 0 : type.length())
+                + (schema == null ? 0 : schema.length());
+        }
+    }
+
+    private Database db;
+    private Cache<String, Entry> cache;
+    private AtomicLong version = new AtomicLong();
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    /**
+     * Wrap the given database with a cache of at most capacity bytes,
+     * warmed up with the metadata of at most warm contents.
+    **/
+    public ContentCache(Database database, long capacity, int warm) {
+        db = database;
+        cache = new Cache<String, Entry>(capacity, Entry::weight);
+        if (warm > 0)
+            warm(warm);
+    }
+
+    public void close() throws Exception {
+        db.close();
+    }
+
+    /** Return the number of lookups served from the cache. **/
+    public long hits() {
+        return hits.get();
+    }
+
+    /** Return the number of lookups forwarded to the database. **/
+    public long misses() {
+        return misses.get();
+    }
+
+    /** Load the metadata of at most limit contents into the cache. **/
+    public void warm(int limit) {
+        var current = version.get();
+        var contents = db.getContents(limit);
+        if (contents == null || version.get() != current)
+            return;
+        for (var content : contents.entrySet()) {
+            var metadata = content.getValue();
+            cache.put(content.getKey(),
+                      new Entry(metadata[0], metadata[1], true));
+        }
+    }
+
+    /** Drop the cached metadata of the given content. **/
+    private <T> T invalidate(String cid, T result) {
+        version.incrementAndGet();
+        cache.remove(cid);
+        return result;
+    }
+
+    /** Insert given file to table content. **/
+    public boolean insertFile(String cid, String type) {
+        return invalidate(cid, db.insertFile(cid, type));
+    }
+
+    /** Insert given directory to table content. **/
+    public boolean insertDirectory(String cid) {
+        return invalidate(cid, db.insertDirectory(cid));
+    }
+
+    /** Insert given files to table content. **/
+    public Set<String> insertFiles(Map<String, String> files) {
+        var result = db.insertFiles(files);
+        for (var cid : files.keySet())
+            invalidate(cid, null);
+        return result;
+    }
+
+    /** Insert given row to table dataset. **/
+    public String insertDataset(Map<String, Object> dataset) {
+        return db.insertDataset(dataset);
+    }
+
+    /** Insert given rows to table dataset. **/
+    public List<String> insertDatasets(List<Map<String, Object>> datasets) {
+        return db.insertDatasets(datasets);
+    }
+
+    /** Insert updated row to table dataset. **/
+    public String updateDataset(Map<String, Object> dataset) {
+        return db.updateDataset(dataset);
+    }
+
+    /**
+     * Stream rows matching the query as a JSON array,
+     * or an object of the array and the next page's token
+     * if the query is paged, return null on errors.
+    **/
+    public InputStream search(Query query) {
+        return db.search(query);
+    }
+
+    /** Return content type. **/
+    public String getType(String cid) {
+        var entry = cache.get(cid);
+        if (entry != null && entry.type != null) {
+            hits.incrementAndGet();
+            return entry.type;
+        }
+
+        misses.incrementAndGet();
+        var current = version.get();
+        var type = db.getType(cid);
+        if (type != null && version.get() == current)
+            cache.put(cid, entry == null ? new Entry(type, null, false)
+                                         : new Entry(type, entry.schema,
+                                                     entry.schemaKnown));
+        return type;
+    }
+
+    /** Return schema of given (semi-)structured content. **/
+    public String getSchema(String cid) {
+        var entry = cache.get(cid);
+        if (entry != null && entry.schemaKnown) {
+            hits.incrementAndGet();
+            return entry.schema;
+        }
+
+        misses.incrementAndGet();
+        var current = version.get();
+        var schema = db.getSchema(cid);
+        if (version.get() == current)
+            cache.put(cid, new Entry(entry == null ? null : entry.type,
+                                     schema, true));
+        return schema;
+    }
+
+    /** Update schema of given (semi-)structured content. **/
+    public void setSchema(String cid, String schema) {
+        db.setSchema(cid, schema);
+        invalidate(cid, null);
+    }
+
+    /** Return the type and schema of at most limit contents. **/
+    public Map<String, String[]> getContents(int limit) {
+        return db.getContents(limit);
+    }
+}
@@ -19,9 +19,10 @@
 
 package comlake.core.db;
 
-import java.util.ArrayList;
+import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public interface Database extends AutoCloseable {
     /** Insert given file to table content. **/
@@ -30,14 +31,33 @@ public interface Database extends AutoCloseable {
     /** Insert given directory to table content. **/
     public boolean insertDirectory(String cid);
 
+    /**
+     * Insert the given files, mapped from their CIDs to their types,
+     * to table content in a single transaction if possible.
+     * Return the CIDs of those failed to be inserted.
+    **/
+    public Set<String> insertFiles(Map<String, String> files);
+
     /** Insert given row to table dataset. **/
     public String insertDataset(Map<String, Object> dataset);
 
+    /**
+     * Insert the given rows to table dataset in a single transaction
+     * if possible and return their IDs, each of which is null
+     * if the respective row failed to be inserted.
+    **/
+    public List<String> insertDatasets(List<Map<String, Object>> datasets);
+
     /** Insert updated row to table dataset. **/
     public String updateDataset(Map<String, Object> dataset);
 
-    /** Filter for rows matching predicate, return null on errors. **/
-    public ArrayList<Map<String, Object>> search(String predicate);
+    /**
+     * Stream rows matching the query as a JSON array,
+     * or an object of the array and the next page's token
+     * if the query is paged, return null on errors.
+     * Throw QueryRejected if the query exceeds the database's limits.
+    **/
+    public InputStream search(Query query);
 
     /** Return content type. **/
     public String getType(String cid);
@@ -47,4 +67,10 @@ public interface Database extends AutoCloseable {
 
     /** Update schema of given (semi-)structured content. **/
     public void setSchema(String cid, String schema);
+
+    /**
+     * Return the type and schema of at most limit contents by their CIDs,
+     * or null on errors.
+    **/
+    public Map<String, String[]> getContents(int limit);
 }
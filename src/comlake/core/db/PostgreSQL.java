@@ -19,22 +19,38 @@
 
 package comlake.core.db;
 
+import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.io.InputStream;
 import java.beans.PropertyVetoException;
-import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import static java.sql.Statement.RETURN_GENERATED_KEYS;
 
 import com.google.gson.Gson;
 
 import com.mchange.v2.c3p0.ComboPooledDataSource;
 
+import comlake.core.Cache;
+import comlake.core.Configuration;
+import comlake.core.JsonArrayStream;
+import comlake.core.Metrics;
 import comlake.core.db.Database;
 
 public class PostgreSQL implements Database {
@@ -49,40 +65,221 @@ public class PostgreSQL implements Database {
         "INSERT INTO dataset (file, description, source, topics, extra, parent)"
         + " SELECT %s, %s, %s, %s, %s, id FROM dataset WHERE id = %d");
     private static final String SEARCH_DATASET = (
-        "SELECT dataset.extra || content.extra as extra,"
-        + " id, cid, type, description, source, topics, parent"
+        "SELECT %s AS result, id"
         + " FROM dataset JOIN content ON file = cid WHERE %s");
+    private static final String SEARCH_PAGE = (
+        "SELECT %s AS result, id"
+        + " FROM dataset JOIN content ON file = cid WHERE (%s)"
+        + " AND id > ? ORDER BY id LIMIT ?");
+    private static final String ROW = (
+        "jsonb_strip_nulls(dataset.extra || content.extra"
+        + " || jsonb_build_object('id', id::text, 'cid', cid, 'type', type,"
+        + " 'description', description, 'source', source, 'topics', topics,"
+        + " 'parent', COALESCE(parent, 0)::text))");
+    private static final Map<String, String> COLUMNS = Map.of(
+        "id", "id::text", "cid", "cid", "type", "type",
+        "description", "description", "source", "source",
+        "topics", "topics", "parent", "COALESCE(parent, 0)::text");
+    private static final String EXTRA = (
+        "COALESCE(content.extra->?::text, dataset.extra->?::text)");
     private static final String GET_TYPE = (
-        "SELECT type FROM content WHERE cid = '%s'");
+        "SELECT type FROM content WHERE cid = ?");
     private static final String GET_SCHEMA = (
-        "SELECT extra->>'schema' FROM content WHERE cid = '%s'");
+        "SELECT extra->>'schema' AS schema FROM content WHERE cid = ?");
     private static final String SET_SCHEMA = (
         "UPDATE content"
-        + " SET extra = jsonb_set(extra, '{schema}'::text[], %s::jsonb)"
-        + " WHERE cid = %s");
+        + " SET extra = jsonb_set(extra, '{schema}'::text[], ?::jsonb)"
+        + " WHERE cid = ?");
+    private static final String GET_CONTENTS = (
+        "SELECT cid, type, extra->>'schema' AS schema FROM content LIMIT ?");
+    private static final String EXPLAIN = "EXPLAIN (FORMAT JSON) ";
+    private static final int FETCH_SIZE = 256;
+    /** SQLSTATE of statements canceled, e.g. by statement_timeout. **/
+    private static final String QUERY_CANCELED = "57014";
     private static final Gson gson = new Gson();
+
+    /** Content insertion waiting to be committed with others. **/
+    private static class Pending {
+        public String cid;
+        public String type;
+        public CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        public Pending(String cid, String type) {
+            this.cid = cid;
+            this.type = type;
+        }
+    }
+
+    /** Most recently written contents to be remembered. **/
+    private static final int WRITTEN = 65536;
+
     private ComboPooledDataSource pool;
+    private List<ComboPooledDataSource> replicas = new ArrayList<>();
+    private AtomicInteger nextReplica = new AtomicInteger();
+    private boolean leastLoaded;
+    private Cache<String, Long> written;
+    private long freshness;
+    private long statementTimeout;
+    private double maxCost;
+    private Metrics.Histogram checkoutTime;
+    private LinkedBlockingQueue<Pending> pending;
+    private Thread committer;
+    private int batchSize;
+    private long batchDelay;
 
-    public PostgreSQL(String url, String user, String password) {
-        pool = new ComboPooledDataSource();
+    /** Construct a connection pool to the database at the given URL. **/
+    private static ComboPooledDataSource connect(Configuration cfg,
+                                                 String url) {
+        var pool = new ComboPooledDataSource();
         try {
             pool.setDriverClass("org.postgresql.Driver");
             pool.setJdbcUrl(url);
             // FIXME: credentials should be securely stored
-            pool.setUser(user);
-            pool.setPassword(password);
+            pool.setUser(cfg.psqlUser);
+            pool.setPassword(cfg.psqlPasswd);
+            // Searches of the same shape share the same SQL,
+            // so their prepared statements are worth keeping around.
+            pool.setMaxStatementsPerConnection(cfg.psqlStatementCache);
         } catch (PropertyVetoException e) {
             // TODO: say something
         }
+        return pool;
+    }
+
+    /**
+     * Connect to the primary database and its read replicas, if any.
+     *
+     * Writes always go to the primary.  Reads are spread across
+     * the replicas, except for the type and schema of contents written
+     * within the configured freshness window and fresh searches.
+    **/
+    public PostgreSQL(Configuration cfg, Metrics metrics) {
+        pool = connect(cfg, cfg.psqlUrl);
+        for (var url : cfg.psqlReplicas)
+            replicas.add(connect(cfg, url));
+        checkoutTime = metrics.histogram(
+            "comlake_psql_checkout_duration_seconds",
+            "Time waited for pooled connections", "");
+        register(metrics, "primary", pool);
+        for (var i = 0; i < replicas.size(); ++i)
+            register(metrics, "replica" + i, replicas.get(i));
+        leastLoaded = "least-loaded".equals(cfg.psqlReplicaRouting);
+        written = new Cache<String, Long>(WRITTEN, time -> 1);
+        freshness = TimeUnit.MILLISECONDS.toNanos(cfg.psqlReadYourWrites);
+        statementTimeout = cfg.psqlStatementTimeout;
+        maxCost = cfg.psqlMaxCost;
+
+        if (cfg.psqlBatchSize > 1) {
+            batchSize = cfg.psqlBatchSize;
+            batchDelay = TimeUnit.MILLISECONDS.toNanos(cfg.psqlBatchDelay);
+            pending = new LinkedBlockingQueue<>();
+            committer = new Thread(this::commitPending, "psql-group-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
     }
 
     public void close() {
+        if (committer != null) {
+            committer.interrupt();
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
         pool.close();
+        for (var replica : replicas)
+            replica.close();
     }
 
-    /** Insert given file to table content. **/
-    public boolean insertFile(String cid, String type) {
-        try (var conn = pool.getConnection();
+    /** Interface of c3p0's per-pool statistics. **/
+    private interface Statistic {
+        int get() throws SQLException;
+    }
+
+    /** Register a gauge of the given pool statistic. **/
+    private static void gauge(Metrics metrics, String name, String help,
+                              String labels, Statistic statistic) {
+        metrics.gauge(name, help, labels, () -> {
+            try {
+                return statistic.get();
+            } catch (SQLException e) {
+                return Double.NaN;
+            }
+        });
+    }
+
+    /** Register the statistics of the given pool. **/
+    private static void register(Metrics metrics, String name,
+                                 ComboPooledDataSource pool) {
+        var label = Metrics.label("pool", name);
+        var connections = "comlake_psql_connections";
+        var help = "Pooled connections to PostgreSQL";
+        gauge(metrics, connections, help,
+              label + "," + Metrics.label("state", "busy"),
+              pool::getNumBusyConnectionsDefaultUser);
+        gauge(metrics, connections, help,
+              label + "," + Metrics.label("state", "idle"),
+              pool::getNumIdleConnectionsDefaultUser);
+        gauge(metrics, "comlake_psql_waiting_threads",
+              "Threads waiting for pooled connections", label,
+              pool::getNumThreadsAwaitingCheckoutDefaultUser);
+    }
+
+    /** Check out a connection from the given pool. **/
+    private Connection checkout(ComboPooledDataSource source)
+        throws SQLException {
+        var start = System.nanoTime();
+        try {
+            return source.getConnection();
+        } finally {
+            checkoutTime.since(start);
+        }
+    }
+
+    /** Return the pool to read from, either a replica or the primary. **/
+    private ComboPooledDataSource reader() {
+        if (replicas.isEmpty())
+            return pool;
+        if (!leastLoaded)
+            return replicas.get(Math.floorMod(nextReplica.getAndIncrement(),
+                                              replicas.size()));
+        ComboPooledDataSource result = null;
+        var least = Integer.MAX_VALUE;
+        for (var replica : replicas) {
+            try {
+                var busy = replica.getNumBusyConnectionsDefaultUser();
+                if (busy < least) {
+                    least = busy;
+                    result = replica;
+                }
+            } catch (SQLException e) {
+                // Unknown load, try another one.
+            }
+        }
+        return result == null ? pool : result;
+    }
+
+    /** Return the pool to read metadata of the given content from. **/
+    private ComboPooledDataSource reader(String cid) {
+        if (replicas.isEmpty())
+            return pool;
+        var time = written.get(cid);
+        if (time != null && System.nanoTime() - time < freshness)
+            return pool;
+        return reader();
+    }
+
+    /** Remember that the given content is being written. **/
+    private void write(String cid) {
+        if (!replicas.isEmpty() && freshness > 0)
+            written.put(cid, System.nanoTime());
+    }
+
+    /** Insert given file to table content in its own transaction. **/
+    private boolean insertContent(String cid, String type) {
+        try (var conn = checkout(pool);
              var statement = conn.prepareStatement(INSERT_CONTENT)) {
             statement.setObject(1, cid);
             statement.setObject(2, type);
@@ -93,23 +290,164 @@ public class PostgreSQL implements Database {
         return true;
     }
 
+    /**
+     * Insert the given files to table content in a single transaction
+     * and complete their futures.  If that fails, they are retried
+     * one by one so that only the faulty ones fail.
+    **/
+    private void flush(List<Pending> batch) {
+        try (var conn = checkout(pool);
+             var statement = conn.prepareStatement(INSERT_CONTENT)) {
+            conn.setAutoCommit(false);
+            try {
+                for (var insertion : batch) {
+                    statement.setObject(1, insertion.cid);
+                    statement.setObject(2, insertion.type);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            for (var insertion : batch)
+                insertion.done.complete(true);
+        } catch (SQLException e) {
+            for (var insertion : batch)
+                insertion.done.complete(
+                    insertContent(insertion.cid, insertion.type));
+        }
+    }
+
+    /**
+     * Commit pending insertions in batches of at most batchSize,
+     * waiting at most batchDelay after the first one for others to join,
+     * until interrupted.
+    **/
+    private void commitPending() {
+        var batch = new ArrayList<Pending>(batchSize);
+        try {
+            while (true) {
+                batch.add(pending.take());
+                var deadline = System.nanoTime() + batchDelay;
+                while (batch.size() < batchSize) {
+                    pending.drainTo(batch, batchSize - batch.size());
+                    var timeout = deadline - System.nanoTime();
+                    if (batch.size() == batchSize || timeout <= 0)
+                        break;
+                    var next = pending.poll(timeout, TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+                flush(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            pending.drainTo(batch);
+            if (!batch.isEmpty())
+                flush(batch);
+        }
+    }
+
+    /**
+     * Insert given file to table content.  In group commit mode,
+     * the insertion is committed together with concurrent ones
+     * and this returns once the transaction is over.
+    **/
+    public boolean insertFile(String cid, String type) {
+        write(cid);
+        if (pending == null)
+            return insertContent(cid, type);
+        var insertion = new Pending(cid, type);
+        pending.add(insertion);
+        if (!committer.isAlive() && pending.remove(insertion))
+            return insertContent(cid, type);
+        return insertion.done.join();
+    }
+
     /** Insert given directory to table content. **/
     public boolean insertDirectory(String cid) {
         return insertFile(cid, "inode/directory");
     }
 
+    /**
+     * Insert given files to table content in a single transaction,
+     * or one by one if that fails, and return the CIDs of those failed.
+    **/
+    public Set<String> insertFiles(Map<String, String> files) {
+        for (var cid : files.keySet())
+            write(cid);
+        var batch = new ArrayList<Pending>(files.size());
+        for (var file : files.entrySet())
+            batch.add(new Pending(file.getKey(), file.getValue()));
+        flush(batch);
+        var failed = new HashSet<String>();
+        for (var insertion : batch)
+            if (!insertion.done.join())
+                failed.add(insertion.cid);
+        return failed;
+    }
+
+    /** Bind the given row to the parameters of INSERT_DATASET. **/
+    private static void bindDataset(PreparedStatement statement,
+                                    Map<String, Object> dataset)
+        throws SQLException {
+        var extra = new HashMap<String, Object>(dataset);
+        statement.setObject(1, extra.remove("file"));
+        statement.setObject(2, extra.remove("description"));
+        statement.setObject(3, extra.remove("source"));
+        // No, I don't want to talk about this.
+        var topics = (ArrayList<String>) extra.remove("topics");
+        statement.setObject(4, String.join(",", topics).split(","));
+        statement.setObject(5, gson.toJson(extra));
+    }
+
+    /** Insert given rows to table dataset in a single transaction. **/
+    public List<String> insertDatasets(List<Map<String, Object>> datasets) {
+        try (var conn = checkout(pool);
+             var statement = conn.prepareStatement(INSERT_DATASET,
+                                                   RETURN_GENERATED_KEYS)) {
+            var ids = new ArrayList<String>(datasets.size());
+            conn.setAutoCommit(false);
+            try {
+                for (var dataset : datasets) {
+                    bindDataset(statement, dataset);
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+                var rs = statement.getGeneratedKeys();
+                while (rs.next())
+                    ids.add(String.valueOf(rs.getLong("id")));
+                if (ids.size() != datasets.size())
+                    throw new SQLException("missing generated keys");
+                conn.commit();
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+            return ids;
+        } catch (SQLException | RuntimeException e) {
+            // Isolate the faulty rows.
+            var ids = new ArrayList<String>(datasets.size());
+            for (var dataset : datasets) {
+                try {
+                    ids.add(insertDataset(dataset));
+                } catch (RuntimeException malformed) {
+                    ids.add(null);
+                }
+            }
+            return ids;
+        }
+    }
+
     /** Insert given row to table dataset. **/
     public String insertDataset(Map<String, Object> dataset) {
-        try (var conn = pool.getConnection();
+        try (var conn = checkout(pool);
              var statement = conn.prepareStatement(INSERT_DATASET,
                                                    RETURN_GENERATED_KEYS)) {
-            statement.setObject(1, dataset.remove("file"));
-            statement.setObject(2, dataset.remove("description"));
-            statement.setObject(3, dataset.remove("source"));
-            // No, I don't want to talk about this.
-            var topics = (ArrayList<String>) dataset.remove("topics");
-            statement.setObject(4, String.join(",", topics).split(","));
-            statement.setObject(5, gson.toJson(dataset));
+            bindDataset(statement, dataset);
             statement.executeUpdate();
             var rs = statement.getGeneratedKeys();
             rs.next();
@@ -126,7 +464,7 @@ public class PostgreSQL implements Database {
 
     /** Insert updated row to table dataset. **/
     public String updateDataset(Map<String, Object> dataset) {
-        try (var conn = pool.getConnection();
+        try (var conn = checkout(pool);
              var statement = conn.createStatement()) {
             var parent = (String) dataset.remove("parent");
             var file = (String) dataset.remove("file");
@@ -153,35 +491,211 @@ public class PostgreSQL implements Database {
         }
     }
 
-    /** Filter for rows matching predicate, return null on errors. **/
-    public ArrayList<Map<String, Object>> search(String predicate) {
-        var result = new ArrayList<Map<String, Object>>();
-        var query = String.format(SEARCH_DATASET, predicate);
-        try (var conn = pool.getConnection();
-             var statement = conn.createStatement()) {
-            var rs = statement.executeQuery(query);
-            while (rs.next()) {
-                var row = gson.fromJson(rs.getString("extra"), Map.class);
-                row.put("id", String.valueOf(rs.getLong("id")));
-                row.put("cid", rs.getString("cid"));
-                row.put("type", rs.getString("type"));
-                row.put("description", rs.getString("description"));
-                row.put("source", rs.getString("source"));
-                row.put("topics", ((Array) rs.getObject("topics")).getArray());
-                row.put("parent", String.valueOf(rs.getLong("parent")));
-                result.add(row);
+    /** Bind the given values to the statement's first parameters. **/
+    private static void bind(PreparedStatement statement, List<Object> params)
+        throws SQLException {
+        for (var i = 0; i < params.size(); ++i) {
+            var param = params.get(i);
+            if (param instanceof String)
+                // Leave the type to be inferred from the context,
+                // just like it would be for a quoted literal.
+                statement.setObject(i + 1, param, Types.OTHER);
+            else if (param instanceof Long || param instanceof Double
+                     || param instanceof Boolean)
+                statement.setObject(i + 1, param);
+            else if (param instanceof Number)
+                statement.setBigDecimal(i + 1,
+                                        new BigDecimal(param.toString()));
+            else
+                throw new SQLException("unsupported parameter: " + param);
+        }
+    }
+
+    /**
+     * Return the SQL building the JSON object of each row,
+     * either whole or of only the fields of the given query.
+     * The fields' names are left as placeholders.
+    **/
+    private static String projection(Query query) {
+        if (query.fields == null)
+            return ROW;
+        var pairs = new ArrayList<String>(query.fields.size());
+        for (var field : query.fields)
+            pairs.add("?::text, " + COLUMNS.getOrDefault(field, EXTRA));
+        return String.format("jsonb_strip_nulls(jsonb_build_object(%s))",
+                             String.join(", ", pairs));
+    }
+
+    /**
+     * Bind the query's parameters, including the projected fields'
+     * and paging ones if any.
+    **/
+    private static void bind(PreparedStatement statement, Query query)
+        throws SQLException {
+        var params = new ArrayList<Object>();
+        if (query.fields != null)
+            for (var field : query.fields) {
+                params.add(field);
+                if (!COLUMNS.containsKey(field))
+                    params.addAll(List.of(field, field));
             }
-        } catch (SQLException e) {
+        params.addAll(query.params);
+        bind(statement, params);
+        if (query.paged()) {
+            var n = params.size();
+            statement.setLong(n + 1, query.after);
+            statement.setInt(n + 2, query.limit);
+        }
+    }
+
+    /** Return the planner's estimated total cost of the given search. **/
+    private static double cost(Connection conn, String sql, Query query)
+        throws SQLException {
+        try (var statement = conn.prepareStatement(EXPLAIN + sql)) {
+            bind(statement, query);
+            try (var rs = statement.executeQuery()) {
+                rs.next();
+                var plans = gson.fromJson(rs.getString(1), List.class);
+                var plan = (Map) ((Map) plans.get(0)).get("Plan");
+                return ((Number) plan.get("Total Cost")).doubleValue();
+            }
+        } catch (RuntimeException e) {
+            throw new SQLException("unexpected plan", e);
+        }
+    }
+
+    /**
+     * Return a closer of the given statement and its connection,
+     * which returns both to the pool.  If the rows are not exhausted,
+     * e.g. because the client has gone away, the statement is cancelled
+     * in case it is still running.
+    **/
+    private static AutoCloseable release(Connection conn,
+                                         PreparedStatement statement,
+                                         Rows rows) {
+        return () -> {
+            try {
+                if (!rows.done)
+                    statement.cancel();
+                statement.close();
+            } finally {
+                conn.close();
+            }
+        };
+    }
+
+    /**
+     * Iterator over the JSON of each remaining row of a result set,
+     * as built by PostgreSQL.
+    **/
+    static class Rows implements Iterator<String> {
+        private ResultSet rs;
+        private boolean ready = false;
+
+        /** Whether all rows have been fetched. **/
+        public volatile boolean done = false;
+
+        /** Number of rows returned so far. **/
+        public int count = 0;
+
+        /** ID of the last returned row. **/
+        public long last = 0;
+
+        public Rows(ResultSet resultSet) {
+            rs = resultSet;
+        }
+
+        public boolean hasNext() {
+            try {
+                if (!ready && !done)
+                    done = !(ready = rs.next());
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+            return ready;
+        }
+
+        public String next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            ready = false;
+            try {
+                last = rs.getLong("id");
+                count++;
+                return rs.getString("result");
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Stream rows matching the query as a JSON array,
+     * or an object of the array and the next page's token
+     * if the query is paged, return null on errors.
+     * Throw QueryRejected if the query is estimated to cost
+     * more than the configured maximum or times out before
+     * its first rows are fetched.
+     *
+     * Rows are encoded in JSON by PostgreSQL and fetched
+     * through a server-side cursor, holding the connection
+     * until the stream is exhausted or closed.
+     * Pages are looked up by dataset ID so that later pages
+     * cost just as much as the first one.
+    **/
+    public InputStream search(Query query) {
+        Connection conn = null;
+        try {
+            conn = checkout(query.fresh ? pool : reader());
+            // PgJDBC only uses cursors outside of autocommit mode.
+            conn.setAutoCommit(false);
+            if (statementTimeout > 0)
+                try (var timeout = conn.createStatement()) {
+                    // Only for this transaction, i.e. this search
+                    timeout.execute(
+                        "SET LOCAL statement_timeout = " + statementTimeout);
+                }
+            var sql = String.format(query.paged() ? SEARCH_PAGE
+                                                  : SEARCH_DATASET,
+                                    projection(query), query.predicate);
+            if (maxCost > 0 && cost(conn, sql, query) > maxCost)
+                throw new QueryRejected(QueryRejected.Reason.EXPENSIVE);
+
+            var statement = conn.prepareStatement(sql);
+            bind(statement, query);
+            statement.setFetchSize(query.paged()
+                                   ? Math.min(query.limit, FETCH_SIZE)
+                                   : FETCH_SIZE);
+            var rows = new Rows(statement.executeQuery());
+            var resource = release(conn, statement, rows);
+            if (!query.paged())
+                return new JsonArrayStream(rows, resource);
+            return new JsonArrayStream("{\"results\":", rows, () -> {
+                var next = rows.count < query.limit ? null
+                                                    : Query.token(rows.last);
+                return ",\"next\":" + gson.toJson(next) + "}";
+            }, resource);
+        } catch (SQLException | QueryRejected e) {
+            try {
+                if (conn != null)
+                    conn.close();
+            } catch (SQLException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            if (e instanceof QueryRejected)
+                throw (QueryRejected) e;
+            if (QUERY_CANCELED.equals(((SQLException) e).getSQLState()))
+                throw new QueryRejected(QueryRejected.Reason.TIMEOUT);
             return null;
         }
-        return result;
     }
 
     /** Return content type. **/
     public String getType(String cid) {
-        try (var conn = pool.getConnection();
-             var statement = conn.createStatement()) {
-            var rs = statement.executeQuery(String.format(GET_TYPE, cid));
+        try (var conn = checkout(reader(cid));
+             var statement = conn.prepareStatement(GET_TYPE)) {
+            statement.setString(1, cid);
+            var rs = statement.executeQuery();
             rs.next();
             return rs.getString("type");
         } catch (SQLException e) {
@@ -191,11 +705,12 @@ public class PostgreSQL implements Database {
 
     /** Return schema of given (semi-)structured content. **/
     public String getSchema(String cid) {
-        try (var conn = pool.getConnection();
-             var statement = conn.createStatement()) {
-            var rs = statement.executeQuery(String.format(GET_SCHEMA, cid));
+        try (var conn = checkout(reader(cid));
+             var statement = conn.prepareStatement(GET_SCHEMA)) {
+            statement.setString(1, cid);
+            var rs = statement.executeQuery();
             rs.next();
-            return rs.getString("?column?");
+            return rs.getString("schema");
         } catch (SQLException e) {
             return null;
         }
@@ -203,11 +718,36 @@ public class PostgreSQL implements Database {
 
     /** Update schema of given (semi-)structured content. **/
     public void setSchema(String cid, String schema) {
-        var query = String.format(SET_SCHEMA, quote(schema), quote(cid));
-        try (var conn = pool.getConnection();
-             var statement = conn.prepareStatement(query)) {
+        write(cid);
+        try (var conn = checkout(pool);
+             var statement = conn.prepareStatement(SET_SCHEMA)) {
+            statement.setString(1, schema);
+            statement.setString(2, cid);
             statement.executeUpdate();
         } catch (SQLException e) {
         }
     }
+
+    /**
+     * Return the type and schema of at most limit contents by their CIDs,
+     * or null on errors.
+    **/
+    public Map<String, String[]> getContents(int limit) {
+        try (var conn = checkout(reader());
+             var statement = conn.prepareStatement(GET_CONTENTS)) {
+            conn.setAutoCommit(false);
+            statement.setInt(1, limit);
+            statement.setFetchSize(FETCH_SIZE);
+            var result = new HashMap<String, String[]>();
+            try (var rs = statement.executeQuery()) {
+                while (rs.next())
+                    result.put(rs.getString("cid"), new String[] {
+                        rs.getString("type"), rs.getString("schema")});
+            }
+            conn.commit();
+            return result;
+        } catch (SQLException e) {
+            return null;
+        }
+    }
 }
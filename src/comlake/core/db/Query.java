@@ -0,0 +1,98 @@
+/*
+ * Dataset search query
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.db;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+import com.google.gson.Gson;
+
+/** Dataset search query, intended for read-only use. **/
+public class Query {
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder()
+        .withoutPadding();
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+    private static final Gson gson = new Gson();
+
+    /** Row predicate in SQL, with placeholders for parameters. **/
+    public String predicate;
+
+    /** Values to be bound to the predicate's placeholders. **/
+    public List<Object> params;
+
+    /** Exclusive lower bound of the dataset IDs to look for. **/
+    public long after;
+
+    /** Maximum number of rows in a page, or zero for an unpaged result. **/
+    public int limit;
+
+    /** Whether the result must reflect the client's latest writes. **/
+    public boolean fresh = false;
+
+    /** Names of the fields of each row in the result, or null for all. **/
+    public List<String> fields = null;
+
+    public Query(String predicate, List<Object> params) {
+        this(predicate, params, 0, 0);
+    }
+
+    public Query(String predicate, List<Object> params,
+                 long after, int limit) {
+        this.predicate = predicate;
+        this.params = params;
+        this.after = after;
+        this.limit = limit;
+    }
+
+    /** Check if the result is to be split into pages. **/
+    public boolean paged() {
+        return limit > 0;
+    }
+
+    /**
+     * Return a string identifying the query,
+     * which tells apart parameters of different types.
+    **/
+    public String key() {
+        return gson.toJson(Arrays.asList(predicate, params, after, limit,
+                                         fields));
+    }
+
+    /** Encode the last dataset ID of a page into a continuation token. **/
+    public static String token(long id) {
+        return encoder.encodeToString(ByteBuffer.allocate(Long.BYTES)
+                                      .putLong(id).array());
+    }
+
+    /** Decode the given continuation token, return null if invalid. **/
+    public static Long parseToken(String token) {
+        try {
+            var bytes = decoder.decode(token);
+            if (bytes.length != Long.BYTES)
+                return null;
+            var id = ByteBuffer.wrap(bytes).getLong();
+            return id < 0 ? null : id;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
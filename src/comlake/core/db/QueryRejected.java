@@ -0,0 +1,47 @@
+/*
+ * Rejection of dataset search queries
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.db;
+
+/**
+ * Search query refused by the database for exceeding its limits,
+ * as opposed to failing for any other reason.
+**/
+public class QueryRejected extends RuntimeException {
+    /** Reason of the rejection. **/
+    public enum Reason {
+        /** Estimated by the planner to cost more than allowed. **/
+        EXPENSIVE("query too expensive"),
+        /** Canceled for running longer than the statement timeout. **/
+        TIMEOUT("query timed out");
+
+        public final String message;
+
+        Reason(String message) {
+            this.message = message;
+        }
+    }
+
+    public final Reason reason;
+
+    public QueryRejected(Reason reason) {
+        super(reason.message);
+        this.reason = reason;
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Search result cache
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import comlake.core.Cache;
+import comlake.core.db.Database;
+
+/**
+ * Database decorator caching serialized search results.
+ *
+ * Every write through this decorator bumps a version counter,
+ * which invalidates all results cached before it.  Results read
+ * shortly after a write are not cached, since they might have come
+ * from a replica yet to receive it.
+**/
+public class SearchCache implements Database {
+    /** Serialized search result at the time of given write version. **/
+    private static class Entry {
+        public long version;
+        public byte[] body;
+
+        public Entry(long version, byte[] body) {
+            this.version = version;
+            this.body = body;
+        }
+    }
+
+    /** Input stream recording what has been read from the wrapped one. **/
+    private static class Recorder extends FilterInputStream {
+        private ByteArrayOutputStream record = new ByteArrayOutputStream();
+        private Consumer<byte[]> callback;
+        private int limit;
+
+        public Recorder(InputStream in, int limit, Consumer<byte[]> callback) {
+            super(in);
+            this.limit = limit;
+            this.callback = callback;
+        }
+
+        /** Keep the given bytes until the record grows over the limit. **/
+        private void save(byte[] b, int off, int len) {
+            if (record == null)
+                return;
+            if (len < 0) {
+                callback.accept(record.toByteArray());
+                record = null;
+            } else if (record.size() + len > limit) {
+                record = null;
+            } else {
+                record.write(b, off, len);
+            }
+        }
+
+        public int read() throws IOException {
+            var b = super.read();
+            save(new byte[] {(byte) b}, 0, b < 0 ? -1 : 1);
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            var n = super.read(b, off, len);
+            save(b, off, n);
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            record = null;
+            return super.skip(n);
+        }
+    }
+
+    private Database db;
+    private Cache<String, Entry> cache;
+    private int entryLimit;
+    private AtomicLong version = new AtomicLong();
+    private AtomicLong written;
+    private long lag;
+    private AtomicLong hits = new AtomicLong();
+    private AtomicLong misses = new AtomicLong();
+
+    /**
+     * Wrap the given database with a cache of results of at most
+     * entryLimit bytes each and capacity bytes in total, not caching
+     * those read within lag milliseconds after a write.
+    **/
+    public SearchCache(Database database, long capacity, int entryLimit,
+                       long lag) {
+        db = database;
+        cache = new Cache<String, Entry>(capacity, entry -> entry.body.length);
+        this.entryLimit = entryLimit;
+        this.lag = TimeUnit.MILLISECONDS.toNanos(lag);
+        written = new AtomicLong(System.nanoTime() - this.lag);
+    }
+
+    public void close() throws Exception {
+        db.close();
+    }
+
+    /** Return the number of searches served from the cache. **/
+    public long hits() {
+        return hits.get();
+    }
+
+    /** Return the number of searches forwarded to the database. **/
+    public long misses() {
+        return misses.get();
+    }
+
+    /** Invalidate every cached result. **/
+    private <T> T bump(T result) {
+        written.set(System.nanoTime());
+        version.incrementAndGet();
+        return result;
+    }
+
+    /** Insert given file to table content. **/
+    public boolean insertFile(String cid, String type) {
+        return bump(db.insertFile(cid, type));
+    }
+
+    /** Insert given directory to table content. **/
+    public boolean insertDirectory(String cid) {
+        return bump(db.insertDirectory(cid));
+    }
+
+    /** Insert given files to table content. **/
+    public Set<String> insertFiles(Map<String, String> files) {
+        return bump(db.insertFiles(files));
+    }
+
+    /** Insert given row to table dataset. **/
+    public String insertDataset(Map<String, Object> dataset) {
+        return bump(db.insertDataset(dataset));
+    }
+
+    /** Insert given rows to table dataset. **/
+    public List<String> insertDatasets(List<Map<String, Object>> datasets) {
+        return bump(db.insertDatasets(datasets));
+    }
+
+    /** Insert updated row to table dataset. **/
+    public String updateDataset(Map<String, Object> dataset) {
+        return bump(db.updateDataset(dataset));
+    }
+
+    /**
+     * Stream rows matching the query as a JSON array,
+     * or an object of the array and the next page's token
+     * if the query is paged, return null on errors.
+     *
+     * Results read to the end are cached unless a write
+     * has happened in the meantime, or so shortly before that
+     * a replica might have yet to receive it.  Fresh queries skip
+     * the lookup, since the cached result might have been read
+     * from a lagging replica.
+    **/
+    public InputStream search(Query query) {
+        var key = query.key();
+        var current = version.get();
+        var entry = query.fresh ? null : cache.get(key);
+        if (entry != null) {
+            if (entry.version == current) {
+                hits.incrementAndGet();
+                return new ByteArrayInputStream(entry.body);
+            }
+            cache.remove(key);
+        }
+
+        misses.incrementAndGet();
+        var result = db.search(query);
+        if (result == null)
+            return null;
+        // Fresh queries are read from the primary.
+        if (!query.fresh && System.nanoTime() - written.get() < lag)
+            return result;
+        return new Recorder(result, entryLimit, body -> {
+            if (version.get() == current)
+                cache.put(key, new Entry(current, body));
+        });
+    }
+
+    /** Return content type. **/
+    public String getType(String cid) {
+        return db.getType(cid);
+    }
+
+    /** Return schema of given (semi-)structured content. **/
+    public String getSchema(String cid) {
+        return db.getSchema(cid);
+    }
+
+    /** Update schema of given (semi-)structured content. **/
+    public void setSchema(String cid, String schema) {
+        db.setSchema(cid, schema);
+        bump(null);
+    }
+
+    /** Return the type and schema of at most limit contents. **/
+    public Map<String, String[]> getContents(int limit) {
+        return db.getContents(limit);
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Ordered output of parallel chunk scans
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.extract;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+
+/**
+ * Iterator over the output of tasks scanning chunks in parallel,
+ * in the order of the chunks.
+ *
+ * At most a fixed number of chunks are scanned ahead of the consumer,
+ * each buffering a bounded number of items, so memory use does not
+ * grow with the size of the output.  Closing the iterator stops
+ * the tasks in flight and skips the remaining chunks.
+**/
+public class ChunkScan implements Iterator<Object>, AutoCloseable {
+    private static final Object END = new Object();
+    /** Interval between checks for cancellation of a blocked task. **/
+    private static final long POLL = 100;
+
+    /** Failure of a task, to be rethrown to the consumer. **/
+    private static class Failure {
+        public Throwable cause;
+
+        public Failure(Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    /** Chunk being scanned. **/
+    private class Chunk extends AFn {
+        public BlockingQueue<Object> queue;
+        public Future<?> future;
+
+        public Chunk(int index) {
+            queue = new ArrayBlockingQueue<>(buffer);
+            future = pool.submit(() -> {
+                try {
+                    task.invoke(index, this);
+                    put(END);
+                } catch (CancellationException e) {
+                    // Nobody is waiting for the rest anyway.
+                } catch (Throwable e) {
+                    put(new Failure(e));
+                }
+            });
+        }
+
+        /** Queue the given item, waiting while the buffer is full. **/
+        private void put(Object item) {
+            try {
+                while (!queue.offer(item, POLL, TimeUnit.MILLISECONDS))
+                    invoke();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CancellationException();
+            }
+        }
+
+        /** Throw CancellationException if the scan has been closed. **/
+        public Object invoke() {
+            if (closed)
+                throw new CancellationException();
+            return null;
+        }
+
+        /** Emit the given item of the chunk's output. **/
+        public Object invoke(Object item) {
+            invoke();
+            put(item);
+            return null;
+        }
+    }
+
+    private ExecutorService pool;
+    private IFn task;
+    private int chunks;
+    private int ahead;
+    private int buffer;
+    private int submitted = 0;
+    private ArrayDeque<Chunk> inFlight = new ArrayDeque<>();
+    private Object pending = null;
+    private volatile boolean closed = false;
+
+    /**
+     * Scan the given number of chunks on the pool, at most ahead
+     * of them at a time, each buffering at most buffer items.
+     *
+     * The task is called with the index of a chunk and a function
+     * emitting each item of its output.  That function throws
+     * CancellationException once the scan is closed, and can also
+     * be called without arguments just to check for that.
+    **/
+    public ChunkScan(ExecutorService pool, int chunks, int ahead,
+                     int buffer, IFn task) {
+        this.pool = pool;
+        this.chunks = chunks;
+        this.ahead = Math.max(ahead, 1);
+        this.buffer = Math.max(buffer, 1);
+        this.task = task;
+    }
+
+    public boolean hasNext() {
+        while (pending == null) {
+            while (!closed && submitted < chunks && inFlight.size() < ahead)
+                inFlight.add(new Chunk(submitted++));
+            var chunk = inFlight.peek();
+            if (chunk == null)
+                return false;
+            Object item;
+            try {
+                item = chunk.queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new IllegalStateException(e);
+            }
+            if (item == END) {
+                inFlight.remove();
+            } else if (item instanceof Failure) {
+                close();
+                throw new IllegalStateException(((Failure) item).cause);
+            } else {
+                pending = item;
+            }
+        }
+        return true;
+    }
+
+    public Object next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        var item = pending;
+        pending = null;
+        return item;
+    }
+
+    public void close() {
+        closed = true;
+        for (var chunk : inFlight)
+            chunk.future.cancel(false);
+        inFlight.clear();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Columnar copy cache
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.extract;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+import clojure.lang.IFn;
+
+import comlake.core.Cache;
+
+/**
+ * Local directory of columnar copies of structured content,
+ * built in the background and evicted to stay within the size limit.
+**/
+public class ColumnCache {
+    /** Most stores to be kept open. **/
+    private static final int OPEN_STORES = 64;
+    /** Most contents remembered to be unsuitable. **/
+    private static final int FAILURES = 4096;
+    private static final Pattern BASE58 = Pattern.compile(
+        "[1-9A-HJ-NP-Za-km-z]+");
+
+    private Path dir;
+    private Cache<String, Long> disk;
+    private Cache<String, ColumnStore> stores;
+    private Cache<String, Boolean> failures;
+    private Set<String> building = ConcurrentHashMap.newKeySet();
+    private ExecutorService executor = Executors.newSingleThreadExecutor(
+        task -> {
+            var thread = new Thread(task, "column-builder");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    /** Delete the given file or directory and its content, if any. **/
+    private static void delete(Path path) {
+        try (var walk = Files.walk(path)) {
+            walk.sorted(Comparator.reverseOrder()).forEach(p -> {
+                try {
+                    Files.deleteIfExists(p);
+                } catch (IOException e) {
+                    // Leftovers will be picked up again on restart.
+                }
+            });
+        } catch (IOException e) {
+            // Likewise
+        }
+    }
+
+    /** Return the total size of the files in the given directory. **/
+    private static long size(Path path) throws IOException {
+        try (var files = Files.list(path)) {
+            var size = 0L;
+            for (var file : (Iterable<Path>) files::iterator)
+                size += Files.size(file);
+            return size;
+        }
+    }
+
+    /**
+     * Keep columnar copies in directory dir, taking up
+     * at most capacity bytes in total.
+    **/
+    public ColumnCache(String dir, long capacity) throws IOException {
+        this.dir = Files.createDirectories(Paths.get(dir));
+        stores = new Cache<String, ColumnStore>(OPEN_STORES, store -> 1);
+        failures = new Cache<String, Boolean>(FAILURES, failure -> 1);
+        disk = new Cache<String, Long>(capacity, size -> size, (cid, size) -> {
+            stores.remove(cid);
+            delete(this.dir.resolve(cid));
+        });
+
+        // Resume from previous runs, in the order of last use.
+        try (var files = Files.list(this.dir)) {
+            var paths = files.toArray(Path[]::new);
+            for (var path : paths)
+                if (!BASE58.matcher(path.getFileName().toString()).matches()
+                    || !Files.isRegularFile(path.resolve(ColumnStore.INDEX)))
+                    delete(path);
+            Arrays.sort(paths, Comparator.comparingLong(path -> {
+                try {
+                    return Files.getLastModifiedTime(path).toMillis();
+                } catch (IOException e) {
+                    return 0;
+                }
+            }));
+            for (var path : paths)
+                if (Files.isDirectory(path))
+                    disk.put(path.getFileName().toString(), size(path));
+        }
+    }
+
+    /** Return the columnar copy of the given content, or null. **/
+    public ColumnStore get(String cid) {
+        var store = stores.get(cid);
+        if (store != null || disk.get(cid) == null)
+            return store;
+        try {
+            store = new ColumnStore(dir.resolve(cid));
+        } catch (IOException | RuntimeException e) {
+            disk.remove(cid);
+            delete(dir.resolve(cid));
+            return null;
+        }
+        stores.put(cid, store);
+        return store;
+    }
+
+    /**
+     * Schedule building the columnar copy of the given content,
+     * with the specified columns also stored as numbers, by calling
+     * fill on a ColumnStore.Builder.  Return false if the copy exists,
+     * is being built or has failed to be built before.
+    **/
+    public boolean build(String cid, Collection<String> numeric, IFn fill) {
+        if (!BASE58.matcher(cid).matches() || disk.get(cid) != null
+            || failures.get(cid) != null || !building.add(cid))
+            return false;
+        executor.execute(() -> {
+            Path temp = null;
+            try {
+                temp = Files.createTempDirectory(dir, ".");
+                try (var builder = new ColumnStore.Builder(temp, numeric)) {
+                    fill.invoke(builder);
+                }
+                var path = dir.resolve(cid);
+                Files.move(temp, path, ATOMIC_MOVE);
+                disk.put(cid, size(path));
+                if (disk.get(cid) == null)  // larger than the whole cache
+                    delete(path);
+            } catch (Exception e) {
+                failures.put(cid, true);
+                if (temp != null)
+                    delete(temp);
+            } finally {
+                building.remove(cid);
+            }
+        });
+        return true;
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Columnar copy of structured content
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.extract;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import clojure.java.api.Clojure;
+import clojure.lang.AFn;
+import clojure.lang.IFn;
+import clojure.lang.ILookup;
+import clojure.lang.RT;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import comlake.core.Evaluator;
+
+/**
+ * Memory-mapped columnar copy of a table or an array of JSON objects.
+ *
+ * Each column is stored as the JSON text of its values back to back
+ * with their end offsets, where an empty value stands for a missing one.
+ * Numeric columns are also stored as doubles.  Rows are evaluated
+ * through a view reading only the columns being looked up,
+ * and matching rows are written out without decoding any value.
+**/
+public class ColumnStore {
+    /** Metadata file, written last. **/
+    public static final String INDEX = "columns.json";
+    /** Most columns to be stored. **/
+    public static final int MAX_COLUMNS = 1024;
+    private static final Gson gson = new GsonBuilder()
+        .disableHtmlEscaping().create();
+    private static final IFn readJson;
+
+    static {
+        Clojure.var("clojure.core", "require").invoke(
+            Clojure.read("clojure.data.json"));
+        readJson = Clojure.var("clojure.data.json", "read-str");
+    }
+
+    /** Column metadata, also serialized to the index. **/
+    private static class Column {
+        public String name;
+        public boolean numeric;
+        public transient String key;
+        public transient ByteBuffer offsets;
+        public transient ByteBuffer data;
+        public transient ByteBuffer numbers;
+    }
+
+    /** Store metadata. **/
+    private static class Index {
+        public int rows;
+        public List<Column> columns;
+    }
+
+    /**
+     * Decode the JSON text of a value into what clojure.data.json
+     * would read, so that queries give the same answers as on the text.
+    **/
+    static Object decode(String json) {
+        if (json.isEmpty())
+            return null;
+        var c = json.charAt(0);
+        if (c == '"' && json.indexOf('\\') < 0)
+            return json.substring(1, json.length() - 1);
+        if (c == '-' || c >= '0' && c <= '9') {
+            try {
+                return Long.parseLong(json);
+            } catch (NumberFormatException e) {
+                // Left to be read as a double or a big integer
+            }
+        }
+        try {
+            return readJson.invoke(json);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** Parse the number in the JSON text of a value, or return NaN. **/
+    static double number(String json) {
+        var value = decode(json);
+        return value instanceof Number || value instanceof String
+            ? Evaluator.toDouble(value) : Double.NaN;
+    }
+
+    /** Writer of a new store, which is complete once closed. **/
+    public static class Builder implements Closeable {
+        /** Column being written. **/
+        private static class Output {
+            public Column column = new Column();
+            public DataOutputStream offsets;
+            public DataOutputStream data;
+            public DataOutputStream numbers;
+            public long size = 0;
+        }
+
+        private Path dir;
+        private Set<String> numeric;
+        private int rows = 0;
+        private Map<Object, Output> outputs = new LinkedHashMap<>();
+
+        /**
+         * Write a store to the given directory, with the specified
+         * columns also stored as numbers.
+        **/
+        public Builder(Path dir, Collection<String> numeric) {
+            this.dir = dir;
+            this.numeric = new HashSet<>(numeric);
+        }
+
+        private static DataOutputStream open(Path path) throws IOException {
+            return new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(path)));
+        }
+
+        /** Add a column, which is missing from all previous rows. **/
+        private Output column(String name) throws IOException {
+            if (outputs.size() >= MAX_COLUMNS)
+                throw new IOException("too many columns");
+            var i = outputs.size();
+            var output = new Output();
+            output.column.name = name;
+            output.column.numeric = numeric.contains(name);
+            output.offsets = open(dir.resolve(i + ".off"));
+            output.data = open(dir.resolve(i + ".dat"));
+            for (var row = 0; row < rows; ++row)
+                output.offsets.writeLong(0);
+            if (output.column.numeric) {
+                output.numbers = open(dir.resolve(i + ".num"));
+                for (var row = 0; row < rows; ++row)
+                    output.numbers.writeDouble(Double.NaN);
+            }
+            outputs.put(name, output);
+            return output;
+        }
+
+        private void write(Output output, String json) throws IOException {
+            if (json != null) {
+                var bytes = json.getBytes(UTF_8);
+                output.data.write(bytes);
+                output.size += bytes.length;
+                if (output.size > Integer.MAX_VALUE)
+                    throw new IOException("column too large to be mapped");
+            }
+            output.offsets.writeLong(output.size);
+            if (output.numbers != null)
+                output.numbers.writeDouble(
+                    json == null ? Double.NaN : number(json));
+        }
+
+        /** Append a row of the JSON text of each value. **/
+        public void add(Map<?, ?> row) throws IOException {
+            if (rows == Integer.MAX_VALUE / Long.BYTES)
+                throw new IOException("too many rows");
+            var found = 0;
+            for (var output : outputs.values()) {
+                var json = (String) row.get(output.column.name);
+                if (json != null)
+                    found++;
+                write(output, json);
+            }
+            if (found < row.size())
+                for (var entry : row.entrySet())
+                    if (!outputs.containsKey(entry.getKey()))
+                        write(column((String) entry.getKey()),
+                              (String) entry.getValue());
+            rows++;
+        }
+
+        public void close() throws IOException {
+            var index = new Index();
+            index.rows = rows;
+            index.columns = new ArrayList<>();
+            for (var output : outputs.values()) {
+                output.offsets.close();
+                output.data.close();
+                if (output.numbers != null)
+                    output.numbers.close();
+                index.columns.add(output.column);
+            }
+            Files.writeString(dir.resolve(INDEX), gson.toJson(index));
+        }
+    }
+
+    /** View of a row of the store, reused from one row to the next. **/
+    private class Cursor implements ILookup, Evaluator.Numeric {
+        public int row;
+
+        /** Return the JSON text of the given column, or null. **/
+        private String json(Column column) {
+            var start = row == 0 ? 0 : (int) column.offsets.getLong(
+                (row - 1) * Long.BYTES);
+            var end = (int) column.offsets.getLong(row * Long.BYTES);
+            if (start == end)
+                return "";
+            var bytes = new byte[end - start];
+            column.data.duplicate().position(start).get(bytes);
+            return new String(bytes, UTF_8);
+        }
+
+        public Object valAt(Object key) {
+            var column = byName.get(key);
+            return column == null ? null : decode(json(column));
+        }
+
+        public Object valAt(Object key, Object notFound) {
+            var value = valAt(key);
+            return value == null ? notFound : value;
+        }
+
+        public double number(Object key) {
+            var column = byName.get(key);
+            if (column == null)
+                return Double.NaN;
+            if (column.numbers != null)
+                return column.numbers.getDouble(row * Double.BYTES);
+            return ColumnStore.number(json(column));
+        }
+
+        /** Encode the current row in JSON. **/
+        public String toJson() {
+            var result = new StringBuilder("{");
+            for (var column : columns) {
+                var json = json(column);
+                if (json.isEmpty())
+                    continue;
+                if (result.length() > 1)
+                    result.append(',');
+                result.append(column.key).append(':').append(json);
+            }
+            return result.append('}').toString();
+        }
+    }
+
+    /** Number of rows. **/
+    public int rows;
+    private List<Column> columns;
+    private Map<Object, Column> byName = new HashMap<>();
+
+    private static ByteBuffer map(Path path) throws IOException {
+        try (var channel = FileChannel.open(path)) {
+            return channel.map(READ_ONLY, 0, channel.size());
+        }
+    }
+
+    /** Open the store in the given directory. **/
+    public ColumnStore(Path dir) throws IOException {
+        var index = gson.fromJson(Files.readString(dir.resolve(INDEX)),
+                                  Index.class);
+        rows = index.rows;
+        columns = index.columns;
+        for (var i = 0; i < columns.size(); ++i) {
+            var column = columns.get(i);
+            column.key = gson.toJson(column.name);
+            column.offsets = map(dir.resolve(i + ".off"));
+            column.data = map(dir.resolve(i + ".dat"));
+            if (column.numeric)
+                column.numbers = map(dir.resolve(i + ".num"));
+            byName.put(column.name, column);
+        }
+    }
+
+    /**
+     * Lazily scan for rows matching the given predicate,
+     * each as a view which is reused from one row to the next.
+    **/
+    public Iterator<Object> rows(IFn predicate) {
+        var cursor = new Cursor();
+        var evaluator = predicate instanceof Evaluator
+            ? (Evaluator) predicate : null;
+        return new Iterator<Object>() {
+            private int row = 0;
+            private boolean found = false;
+
+            public boolean hasNext() {
+                while (!found && row < rows) {
+                    cursor.row = row++;
+                    found = evaluator == null
+                        ? RT.booleanCast(predicate.invoke(cursor))
+                        : evaluator.truth(cursor) == Evaluator.TRUE;
+                }
+                return found;
+            }
+
+            public Object next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                found = false;
+                return cursor;
+            }
+        };
+    }
+
+    /**
+     * Lazily scan for rows matching the given predicate,
+     * each encoded in JSON.
+    **/
+    public Iterator<String> scan(IFn predicate) {
+        var rows = rows(predicate);
+        return new Iterator<String>() {
+            public boolean hasNext() {
+                return rows.hasNext();
+            }
+
+            public String next() {
+                return ((Cursor) rows.next()).toJson();
+            }
+        };
+    }
+
+    /**
+     * Wrap the given JSON encoder to write out rows of stores
+     * without decoding them.
+    **/
+    public static IFn encoder(IFn encode) {
+        return new AFn() {
+            public Object invoke(Object value) {
+                if (value instanceof Cursor)
+                    return ((Cursor) value).toJson();
+                return encode.invoke(value);
+            }
+        };
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * CSV record-aligned splitter
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.extract;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * Splitter of CSV files into byte ranges aligned on record boundaries.
+ *
+ * Whether a position is inside a quoted field only depends on
+ * the parity of quotes before it, so the file is first cut blindly
+ * into equal parts whose quotes are counted in parallel.
+ * Each cut is then moved forward to the end of the record it falls in.
+**/
+public class CsvSplitter {
+    private static final int BUFFER = 1 << 16;
+
+    /** Callback on each byte of a scan. **/
+    private interface Visitor {
+        /** Return false to stop the scan at the given position. **/
+        boolean visit(byte b, long position);
+    }
+
+    /** Visit each byte from start to end (exclusive). **/
+    private static void scan(FileChannel channel, long start, long end,
+                             Visitor visitor) throws IOException {
+        var buffer = ByteBuffer.allocate(BUFFER);
+        for (var position = start; position < end;) {
+            buffer.clear().limit((int) Math.min(BUFFER, end - position));
+            var n = channel.read(buffer, position);
+            if (n <= 0)
+                return;
+            for (var i = 0; i < n; ++i)
+                if (!visitor.visit(buffer.get(i), position + i))
+                    return;
+            position += n;
+        }
+    }
+
+    /** Check if there is an odd number of quotes from start to end. **/
+    private static boolean oddQuotes(FileChannel channel, long start, long end)
+        throws IOException {
+        var odd = new boolean[] {false};
+        scan(channel, start, end, (b, position) -> {
+            if (b == '"')
+                odd[0] = !odd[0];
+            return true;
+        });
+        return odd[0];
+    }
+
+    /**
+     * Return the position right after the end of the record
+     * containing the start, given whether it is quoted.
+    **/
+    private static long recordEnd(FileChannel channel, long start, long end,
+                                  boolean quoted) throws IOException {
+        var state = new boolean[] {quoted};
+        var result = new long[] {end};
+        scan(channel, start, end, (b, position) -> {
+            if (b == '"') {
+                state[0] = !state[0];
+            } else if (b == '\n' && !state[0]) {
+                result[0] = position + 1;
+                return false;
+            }
+            return true;
+        });
+        return result[0];
+    }
+
+    /**
+     * Split the CSV file at the given path into at most the given
+     * number of parts and return their boundaries.  The first part
+     * is always the header, followed by ranges of whole records;
+     * the ith range spans from the ith boundary to the next one.
+    **/
+    public static long[] split(Path path, int parts) throws IOException {
+        try (var channel = FileChannel.open(path)) {
+            var size = channel.size();
+            var header = recordEnd(channel, 0, size, false);
+            var step = Math.max((size - header + parts - 1) / parts, 1);
+            var cuts = LongStream.iterate(header, i -> i < size, i -> i + step)
+                .toArray();
+            var n = cuts.length;
+
+            var odd = new boolean[n];
+            var ends = new long[n];
+            try {
+                IntStream.range(0, n).parallel().forEach(i -> {
+                    try {
+                        odd[i] = oddQuotes(channel, cuts[i],
+                                           Math.min(cuts[i] + step, size));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+                var quoted = new boolean[n];
+                for (var i = 1; i < n; ++i)
+                    quoted[i] = quoted[i - 1] ^ odd[i - 1];
+                IntStream.range(1, n).parallel().forEach(i -> {
+                    try {
+                        ends[i] = recordEnd(channel, cuts[i], size, quoted[i]);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            // Records longer than a part make some cuts collapse.
+            var bounds = LongStream.builder().add(0).add(header);
+            var last = header;
+            for (var i = 1; i < n; ++i)
+                if (ends[i] > last && ends[i] < size)
+                    bounds.add(last = ends[i]);
+            if (size > last)
+                bounds.add(size);
+            return bounds.build().toArray();
+        }
+    }
+}
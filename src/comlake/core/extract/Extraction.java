@@ -0,0 +1,552 @@
+/*
+ * Extraction query with aggregation and ordering
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.extract;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import clojure.lang.IFn;
+
+import comlake.core.Evaluator;
+
+/**
+ * Extraction query compiled from its AST, which is either a predicate
+ * or an object of the predicate (where), the fields to be selected,
+ * the expressions to group by, the order and the most rows to return.
+ *
+ * Matching rows are processed in a single pass, holding in memory
+ * only the groups or, if ordered with a limit, the top rows so far.
+ * Partial results of parts of the content can be merged in order,
+ * as if the whole content were processed in one pass.
+**/
+public class Extraction {
+    private static final Set<String> KEYS = Set.of(
+        "where", "select", "group-by", "order-by", "limit");
+    private static final Set<String> AGGREGATES = Set.of(
+        "count", "sum", "min", "max", "avg");
+
+    /** Predicate of the rows to be extracted, intended for read-only use. **/
+    public Evaluator where;
+    /** Most rows to return, or -1 for no limit. **/
+    public long limit = -1;
+    /** Names of the selected fields, or null to return whole rows. **/
+    private String[] names;
+    /** Expressions of the selected fields, or arguments of aggregates. **/
+    private Evaluator[] values;
+    /** Aggregate of each selected field, or null if it is not one. **/
+    private String[] aggregates;
+    private boolean aggregated = false;
+    private Evaluator[] groupBy;
+    private Evaluator[] orderBy;
+    private boolean[] descending;
+
+    private Extraction() {
+    }
+
+    /** Running aggregate of a selected field. **/
+    private static class Accumulator {
+        private String op;
+        private long count = 0;
+        private double sum = 0;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+        /** Extremes of non-numeric strings, if there is no number. **/
+        private String minString;
+        private String maxString;
+
+        public Accumulator(String op) {
+            this.op = op;
+        }
+
+        /** Add the value of arg on the given row, if any. **/
+        public void add(Evaluator arg, Object row) {
+            if (op.equals("count")) {
+                if (arg == null || arg.eval(row) != null)
+                    count++;
+                return;
+            }
+            var x = arg.number(row);
+            if (!Double.isNaN(x)) {
+                count++;
+                sum += x;
+                min = Math.min(min, x);
+                max = Math.max(max, x);
+            } else if (count == 0 && (op.equals("min") || op.equals("max"))) {
+                var value = arg.eval(row);
+                if (value instanceof String)
+                    add((String) value);
+            }
+        }
+
+        private void add(String s) {
+            if (minString == null || s.compareTo(minString) < 0)
+                minString = s;
+            if (maxString == null || s.compareTo(maxString) > 0)
+                maxString = s;
+        }
+
+        /** Add what has been accumulated by the other accumulator. **/
+        public void merge(Accumulator other) {
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            if (other.minString != null) {
+                add(other.minString);
+                add(other.maxString);
+            }
+        }
+
+        public Object value() {
+            switch (op) {
+            case "count":
+                return count;
+            case "sum":
+                return count == 0 ? null : number(sum);
+            case "avg":
+                return count == 0 ? null : sum / count;
+            case "min":
+                return count == 0 ? minString : number(min);
+            default:
+                return count == 0 ? maxString : number(max);
+            }
+        }
+    }
+
+    /** Encode the given number as an integer if it is one. **/
+    private static Object number(double x) {
+        if (x == Math.rint(x) && Math.abs(x) < 0x1p53)
+            return (long) x;
+        return x;
+    }
+
+    /** Group of rows, with the values of its first row. **/
+    private static class Group {
+        public Object[] first;
+        public Accumulator[] accumulators;
+    }
+
+    /** Output row with the values to order it by. **/
+    private static class Entry {
+        public Object[] keys;
+        /** Position of the row in the output without ordering. **/
+        public long position;
+        public Object row;
+
+        public Entry(Object[] keys, long position) {
+            this.keys = keys;
+            this.position = position;
+        }
+    }
+
+    /**
+     * Rank of the given value in ordering: numbers, including strings
+     * representing them, then other strings, other values and missing
+     * values, i.e. nulls and empty strings like empty fields in CSV.
+    **/
+    private static int rank(Object value) {
+        if (value == null || "".equals(value))
+            return 3;
+        if (!Double.isNaN(Evaluator.toDouble(value)))
+            return 0;
+        return value instanceof String ? 1 : 2;
+    }
+
+    /** Compare two values of the same rank. **/
+    private static int compare(int rank, Object a, Object b) {
+        switch (rank) {
+        case 0:
+            return Double.compare(Evaluator.toDouble(a),
+                                  Evaluator.toDouble(b));
+        case 1:
+            return ((String) a).compareTo((String) b);
+        case 2:
+            return a.toString().compareTo(b.toString());
+        default:
+            return 0;
+        }
+    }
+
+    /**
+     * Compare entries in the order of the query, where missing values
+     * come last in either direction.
+    **/
+    private int order(Entry a, Entry b) {
+        for (var i = 0; i < orderBy.length; ++i) {
+            var x = rank(a.keys[i]);
+            var y = rank(b.keys[i]);
+            if (x == 3 || y == 3) {
+                if (x != y)
+                    return x == 3 ? 1 : -1;
+                continue;
+            }
+            var c = x == y ? compare(x, a.keys[i], b.keys[i])
+                : Integer.compare(x, y);
+            if (c != 0)
+                return descending[i] ? -c : c;
+        }
+        return Long.compare(a.position, b.position);
+    }
+
+    /**
+     * Output rows ordered by the query, keeping only the top ones
+     * in a bounded heap if the number of rows is limited.
+    **/
+    private class Ranking {
+        private PriorityQueue<Entry> heap;
+        private List<Entry> entries;
+
+        public Ranking() {
+            if (limit < 0)
+                entries = new ArrayList<>();
+            else  // worst on top, to be dropped first
+                heap = new PriorityQueue<>(
+                    (a, b) -> order(b, a));
+        }
+
+        /** Check if an entry would be kept, before computing its row. **/
+        public boolean admits(Entry entry) {
+            if (heap == null || heap.size() < limit)
+                return true;
+            return heap.size() > 0 && order(entry, heap.peek()) < 0;
+        }
+
+        public void add(Entry entry) {
+            if (heap == null) {
+                entries.add(entry);
+            } else if (admits(entry)) {
+                heap.add(entry);
+                if (heap.size() > limit)
+                    heap.poll();
+            }
+        }
+
+        public Iterable<Entry> all() {
+            return heap == null ? entries : heap;
+        }
+
+        public List<Entry> sorted() {
+            var result = new ArrayList<Entry>(heap == null ? entries : heap);
+            result.sort(Extraction.this::order);
+            return result;
+        }
+    }
+
+    /**
+     * Partial result of the query over some of the matching rows,
+     * encoded by the given function.
+    **/
+    public class Result {
+        private IFn encode;
+        private long seen = 0;
+        private LinkedHashMap<List<Object>, Group> groups;
+        private Ranking ranking;
+        private List<Object> rows;
+
+        private Result(IFn encode) {
+            this.encode = encode;
+            if (aggregated)
+                groups = new LinkedHashMap<>();
+            else if (orderBy != null)
+                ranking = new Ranking();
+            else
+                rows = new ArrayList<>();
+        }
+
+        /** Return the values of orderBy on the given output row. **/
+        private Object[] keys(Object row) {
+            var keys = new Object[orderBy.length];
+            for (var i = 0; i < orderBy.length; ++i)
+                keys[i] = orderBy[i].eval(row);
+            return keys;
+        }
+
+        private Group group(Object row) {
+            var group = new Group();
+            group.first = new Object[names.length];
+            group.accumulators = new Accumulator[names.length];
+            for (var i = 0; i < names.length; ++i)
+                if (aggregates[i] == null)
+                    group.first[i] = row == null ? null : values[i].eval(row);
+                else
+                    group.accumulators[i] = new Accumulator(aggregates[i]);
+            return group;
+        }
+
+        /**
+         * Add the given row, which must match the predicate.
+         * Rows are not retained, except as values of their fields.
+        **/
+        public void add(Object row) {
+            var position = seen++;
+            if (groups != null) {
+                List<Object> key = List.of();
+                if (groupBy != null) {
+                    var parts = new Object[groupBy.length];
+                    for (var i = 0; i < groupBy.length; ++i)
+                        parts[i] = groupBy[i].eval(row);
+                    key = Arrays.asList(parts);
+                }
+                var group = groups.get(key);
+                if (group == null)
+                    groups.put(key, group = group(row));
+                for (var i = 0; i < names.length; ++i)
+                    if (aggregates[i] != null)
+                        group.accumulators[i].add(values[i], row);
+            } else if (ranking != null) {
+                var output = output(row);
+                var entry = new Entry(keys(output), position);
+                if (ranking.admits(entry)) {
+                    entry.row = encode.invoke(output);
+                    ranking.add(entry);
+                }
+            } else if (limit < 0 || rows.size() < limit) {
+                rows.add(encode.invoke(output(row)));
+            }
+        }
+
+        /**
+         * Add what has been accumulated by the other result,
+         * of the rows following those added to this one.
+        **/
+        public Result merge(Result other) {
+            if (groups != null) {
+                for (var entry : other.groups.entrySet()) {
+                    var group = groups.putIfAbsent(entry.getKey(),
+                                                   entry.getValue());
+                    if (group != null)
+                        for (var i = 0; i < names.length; ++i)
+                            if (aggregates[i] != null)
+                                group.accumulators[i].merge(
+                                    entry.getValue().accumulators[i]);
+                }
+            } else if (ranking != null) {
+                for (var entry : other.ranking.all()) {
+                    entry.position += seen;
+                    ranking.add(entry);
+                }
+            } else {
+                for (var row : other.rows)
+                    if (limit < 0 || rows.size() < limit)
+                        rows.add(row);
+            }
+            seen += other.seen;
+            return this;
+        }
+
+        /** Return the output rows, each encoded in JSON. **/
+        public Iterator<String> iterator() {
+            var result = new ArrayList<Object>();
+            if (groups != null) {
+                // Aggregates over no row still make a row.
+                if (groupBy == null && groups.isEmpty())
+                    groups.put(List.of(), group(null));
+                var outputs = new Ranking();
+                var position = 0L;
+                for (var group : groups.values()) {
+                    var output = new LinkedHashMap<String, Object>();
+                    for (var i = 0; i < names.length; ++i)
+                        output.put(names[i], aggregates[i] == null
+                                   ? group.first[i]
+                                   : group.accumulators[i].value());
+                    if (orderBy == null) {
+                        if (limit >= 0 && result.size() >= limit)
+                            break;
+                        result.add(encode.invoke(output));
+                    } else {
+                        var entry = new Entry(keys(output), position++);
+                        entry.row = output;
+                        outputs.add(entry);
+                    }
+                }
+                if (orderBy != null)
+                    for (var entry : outputs.sorted())
+                        result.add(encode.invoke(entry.row));
+            } else if (ranking != null) {
+                for (var entry : ranking.sorted())
+                    result.add(entry.row);
+            } else {
+                result.addAll(rows);
+            }
+            return (Iterator<String>) (Iterator<?>) result.iterator();
+        }
+    }
+
+    /**
+     * Compile the given extraction query AST, or return null
+     * if it is invalid.
+    **/
+    public static Extraction compile(Object ast) {
+        var query = new Extraction();
+        if (!(ast instanceof Map)) {
+            query.where = Evaluator.compile(ast);
+            return query.where == null ? null : query;
+        }
+
+        var fields = (Map<?, ?>) ast;
+        if (!KEYS.containsAll(fields.keySet()))
+            return null;
+        query.where = Evaluator.compile(fields.containsKey("where")
+                                        ? fields.get("where") : true);
+        if (query.where == null)
+            return null;
+
+        var select = fields.get("select");
+        if (select != null) {
+            if (!(select instanceof Map) || ((Map<?, ?>) select).isEmpty())
+                return null;
+            var n = ((Map<?, ?>) select).size();
+            query.names = new String[n];
+            query.values = new Evaluator[n];
+            query.aggregates = new String[n];
+            var i = 0;
+            for (var field : ((Map<?, ?>) select).entrySet()) {
+                if (!(field.getKey() instanceof String))
+                    return null;
+                query.names[i] = (String) field.getKey();
+                var value = field.getValue();
+                if (value instanceof List && !((List<?>) value).isEmpty()
+                    && AGGREGATES.contains(((List<?>) value).get(0))) {
+                    var aggregate = (List<?>) value;
+                    query.aggregates[i] = (String) aggregate.get(0);
+                    query.aggregated = true;
+                    if (aggregate.size() == 1
+                        && query.aggregates[i].equals("count")) {
+                        i++;
+                        continue;
+                    }
+                    if (aggregate.size() != 2)
+                        return null;
+                    value = aggregate.get(1);
+                }
+                if ((query.values[i++] = Evaluator.compile(value)) == null)
+                    return null;
+            }
+        }
+
+        var groupBy = fields.get("group-by");
+        if (groupBy != null) {
+            if (select == null || !(groupBy instanceof List)
+                || ((List<?>) groupBy).isEmpty())
+                return null;
+            var exprs = (List<?>) groupBy;
+            query.groupBy = new Evaluator[exprs.size()];
+            for (var i = 0; i < exprs.size(); ++i)
+                if ((query.groupBy[i] = Evaluator.compile(exprs.get(i)))
+                    == null)
+                    return null;
+            query.aggregated = true;
+        }
+
+        var orderBy = fields.get("order-by");
+        if (orderBy != null) {
+            if (!(orderBy instanceof List) || ((List<?>) orderBy).isEmpty())
+                return null;
+            var exprs = (List<?>) orderBy;
+            query.orderBy = new Evaluator[exprs.size()];
+            query.descending = new boolean[exprs.size()];
+            for (var i = 0; i < exprs.size(); ++i) {
+                var expr = exprs.get(i);
+                if (expr instanceof List && ((List<?>) expr).size() == 2) {
+                    var direction = ((List<?>) expr).get(0);
+                    if ("asc".equals(direction) || "desc".equals(direction)) {
+                        query.descending[i] = "desc".equals(direction);
+                        expr = ((List<?>) expr).get(1);
+                    }
+                }
+                if ((query.orderBy[i] = Evaluator.compile(expr)) == null)
+                    return null;
+            }
+        }
+
+        var limit = fields.get("limit");
+        if (limit != null) {
+            if (!(limit instanceof Long || limit instanceof Integer)
+                || ((Number) limit).longValue() < 0)
+                return null;
+            query.limit = ((Number) limit).longValue();
+        }
+        return query;
+    }
+
+    /** Check if the query only filters rows. **/
+    public boolean filterOnly() {
+        return names == null && orderBy == null && limit < 0;
+    }
+
+    /** Check if output rows can be produced one at a time. **/
+    public boolean streaming() {
+        return !aggregated && orderBy == null;
+    }
+
+    /**
+     * Return the output of the given row if the query is streaming,
+     * i.e. the row itself or its selected fields.
+    **/
+    public Object output(Object row) {
+        if (names == null)
+            return row;
+        var result = new LinkedHashMap<String, Object>();
+        for (var i = 0; i < names.length; ++i)
+            result.put(names[i], values[i].eval(row));
+        return result;
+    }
+
+    /** Return an empty result, whose rows are encoded by encode. **/
+    public Result result(IFn encode) {
+        return new Result(encode);
+    }
+
+    /**
+     * Return the output of the given matching rows, each encoded
+     * by the given function.  Rows are read as the output is consumed
+     * if the query is streaming, otherwise all at once.  Since rows
+     * are not retained, they may be views reused between rows.
+    **/
+    public Iterator<String> apply(Iterator<?> rows, IFn encode) {
+        if (!streaming()) {
+            var result = result(encode);
+            while (rows.hasNext())
+                result.add(rows.next());
+            return result.iterator();
+        }
+        return new Iterator<String>() {
+            private long count = 0;
+
+            public boolean hasNext() {
+                return (limit < 0 || count < limit) && rows.hasNext();
+            }
+
+            public String next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                count++;
+                return (String) encode.invoke(output(rows.next()));
+            }
+        };
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * JSON array splitter
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.extract;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator over the source text of each element of a top-level JSON array,
+ * read from the given reader one element at a time.
+ *
+ * Elements are only delimited, not validated.  A document which is not
+ * an array is treated as an array of that single value.
+**/
+public class JsonElements implements Iterator<String> {
+    private Reader reader;
+    private char[] buffer = new char[8192];
+    private int position = 0;
+    private int length = 0;
+    private int pushback = -1;
+    private StringBuilder element = new StringBuilder();
+    private String next = null;
+    private boolean started = false;
+    private boolean array = false;
+    private boolean done = false;
+
+    public JsonElements(Reader reader) {
+        this.reader = reader;
+    }
+
+    /** Check if the document is an array, once hasNext has been called. **/
+    public boolean isArray() {
+        return array;
+    }
+
+    private static boolean whitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    /** Read the next character, or -1 at the end of the stream. **/
+    private int read() {
+        if (pushback >= 0) {
+            var c = pushback;
+            pushback = -1;
+            return c;
+        }
+        if (position == length) {
+            try {
+                length = reader.read(buffer);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            position = 0;
+            if (length <= 0) {
+                length = 0;
+                return -1;
+            }
+        }
+        return buffer[position++];
+    }
+
+    /** Read the next non-whitespace character. **/
+    private int skip() {
+        int c;
+        do {
+            c = read();
+        } while (whitespace(c));
+        return c;
+    }
+
+    /** Read the value starting with the given character. **/
+    private String value(int c) {
+        element.setLength(0);
+        var depth = 0;
+        var quoted = false;
+        var escaped = false;
+        for (;; c = read()) {
+            if (c < 0) {
+                if (depth > 0 || quoted)
+                    throw new IllegalStateException(
+                        "JSON error (end-of-file inside array)");
+                break;
+            }
+            if (quoted) {
+                if (escaped)
+                    escaped = false;
+                else if (c == '\\')
+                    escaped = true;
+                else if (c == '"')
+                    quoted = false;
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == '[' || c == '{') {
+                depth++;
+            } else if (depth > 0 && (c == ']' || c == '}')) {
+                depth--;
+            } else if (depth == 0 && (c == ',' || c == ']' || c == '}'
+                                      || whitespace(c))) {
+                pushback = c;
+                break;
+            }
+            element.append((char) c);
+        }
+        return element.toString();
+    }
+
+    public boolean hasNext() {
+        if (next != null)
+            return true;
+        if (done)
+            return false;
+
+        var c = skip();
+        if (!started) {
+            started = true;
+            if (c != '[') {
+                done = true;
+                if (c < 0)
+                    return false;
+                next = value(c);
+                if (skip() >= 0)
+                    throw new IllegalStateException(
+                        "JSON error (trailing characters)");
+                return true;
+            }
+            array = true;
+            c = skip();
+        } else if (c == ',') {
+            c = skip();
+        } else if (c != ']') {
+            throw new IllegalStateException(
+                "JSON error (expected comma or closing bracket)");
+        }
+
+        if (c < 0)
+            throw new IllegalStateException(
+                "JSON error (end-of-file inside array)");
+        if (c == ']') {
+            done = true;
+            return false;
+        }
+        next = value(c);
+        return true;
+    }
+
+    public String next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        var result = next;
+        next = null;
+        return result;
+    }
+}
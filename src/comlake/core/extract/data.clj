@@ -18,7 +18,23 @@
 (ns comlake.core.extract.data
   "Data extractors."
   (:require [clojure.data.csv :refer [read-csv]]
-            [clojure.data.json :as json]))
+            [clojure.data.json :as json]
+            [clojure.java.io :refer [reader]]
+            [clojure.string :refer [blank?]])
+  (:import (comlake.core ChannelSlice)
+           (comlake.core.extract ChunkScan CsvSplitter Extraction
+                                 Extraction$Result JsonElements)
+           (java.nio.file Files)
+           (java.util Iterator)
+           (java.util.concurrent ForkJoinPool)))
+
+(def parallel-threshold
+  "Minimum size in bytes for local CSV files to be scanned in parallel."
+  (* 16 1024 1024))
+
+(def scan-pool
+  "Fork-join pool for parallel scans, one thread per core."
+  (delay (ForkJoinPool. (.availableProcessors (Runtime/getRuntime)))))
 
 (defn csv->json
   "Convert tabular data to key-value."
@@ -26,12 +42,137 @@
   (let [names (first csv)]
     (map #(zipmap names %) (rest csv))))
 
+(defn element-seq
+  "Lazily parse the elements split by given JsonElements, one at a time."
+  [elements]
+  (lazy-seq (when (.hasNext elements)
+              (cons (json/read-str (.next elements)) (element-seq elements)))))
+
+(defn json-elements
+  "Lazily parse elements of the top-level JSON array from given reader,
+  one at a time."
+  [reader]
+  (element-seq (JsonElements. reader)))
+
+(def scan-buffer
+  "Maximum number of items buffered from each chunk of a parallel scan."
+  256)
+
+(defn scan-csv
+  "Split the CSV file at given local path into record-aligned chunks
+  and apply f to the column names and the records of each chunk
+  on the scan pool, as many chunks at a time as there are threads.
+  Return the column names and a closeable iterator over the items
+  of the sequences returned by f, in order, or nil if the file
+  is too small to be split.  Closing the iterator stops the scan."
+  [path f]
+  (when (>= (Files/size path) parallel-threshold)
+    (let [pool @scan-pool
+          threads (.getParallelism pool)
+          [_ header & bounds] (CsvSplitter/split path (* 4 threads))
+          starts (vec (cons header bounds))
+          ends (vec bounds)
+          names (with-open [r (reader (ChannelSlice/open path 0 header))]
+                  (first (read-csv r)))
+          scan (fn [i emit]
+                 (with-open [r (reader (ChannelSlice/open
+                                         path (starts i) (ends i)))]
+                   (doseq [item (f names (map #(do (emit) %)
+                                              (read-csv r)))]
+                     (emit item))))]
+      [names (ChunkScan. pool (count ends) threads scan-buffer scan)])))
+
 (defn extract-data
-  "Extract (semi-)structured data matching given predicate."
-  [predicate mime reader]
-  (when-let [result (case mime
-                      "application/json" (filter predicate (json/read reader))
-                      "text/csv" (filter predicate
-                                         (csv->json (read-csv reader)))
-                      nil)]
-    (json/write-str result)))
+  "Lazily extract (semi-)structured data matching given query,
+  each encoded in JSON.  Rows are parsed from the reader only as
+  the result is consumed, or all at once in a single pass
+  if the result is aggregated or ordered."
+  [^Extraction query mime reader]
+  (when-let [rows (case mime
+                    "application/json" (json-elements reader)
+                    "text/csv" (csv->json (read-csv reader))
+                    nil)]
+    (let [matches (filter (.-where query) rows)]
+      (if (.filterOnly query)
+        (map json/write-str matches)
+        (lazy-seq (iterator-seq (.apply query (.iterator matches)
+                                        json/write-str)))))))
+
+(defn- scan-rows
+  "Apply the query to the given CSV records under given column names,
+  returning the lazy sequence of their encoded output if it is streaming,
+  otherwise their partial result alone."
+  [^Extraction query names records]
+  (let [rows (sequence (comp (map #(zipmap names %))
+                             (filter (.-where query)))
+                       records)]
+    (if (.streaming query)
+      (sequence (comp (map #(.output query %))
+                      (if (neg? (.-limit query))
+                        identity
+                        (take (.-limit query)))
+                      (map json/write-str))
+                rows)
+      (let [result (.result query json/write-str)]
+        (doseq [row rows]
+          (.add result row))
+        [result]))))
+
+(defn- closing
+  "Return an iterator over the given sequence, which is closeable
+  along with the given resource."
+  [xs ^java.lang.AutoCloseable resource]
+  (let [iterator (.iterator ^Iterable xs)]
+    (reify
+      Iterator
+      (hasNext [_] (.hasNext iterator))
+      (next [_] (.next iterator))
+      java.lang.AutoCloseable
+      (close [_] (.close resource)))))
+
+(defn extract-local
+  "Extract data matching given query from the local file
+  at given path in parallel, each encoded in JSON, in the original order.
+  Return a closeable iterator over the result, or nil if the content
+  is not suitable for a parallel scan.  Closing it stops the scan.
+
+  Aggregated and ordered results are computed for each part in parallel,
+  then merged in order."
+  [^Extraction query mime path]
+  (when (= mime "text/csv")
+    (when-let [[_ ^ChunkScan chunks] (scan-csv path
+                                                (partial scan-rows query))]
+      (closing (if (.streaming query)
+                 (cond->> (iterator-seq chunks)
+                   (not (neg? (.-limit query))) (take (.-limit query)))
+                 (lazy-seq (iterator-seq
+                             (.iterator (reduce #(.merge ^Extraction$Result
+                                                         %1 %2)
+                                                (iterator-seq chunks))))))
+               chunks))))
+
+(defn numeric-columns
+  "Return names of the top-level numeric fields of array items
+  in given JSON schema, which may also be null."
+  [schema]
+  (for [[field {type "type"}] (get-in (json/read-str schema)
+                                      ["items" "properties"])
+        :let [types (remove #{"null"} (if (string? type) [type] type))]
+        :when (and (seq types) (every? #{"integer" "number"} types))]
+    field))
+
+(defn build-columns
+  "Schedule building the columnar copy of given structured content
+  in the column cache, once its schema has been inferred."
+  [columns cid mime fs db]
+  (let [schema (.getSchema db cid)]
+    (when (and (#{"application/json" "text/csv"} mime) (not (blank? schema)))
+      (.build columns cid (numeric-columns schema)
+              (fn [builder]
+                (with-open [r (reader (.fetch fs cid))]
+                  (doseq [row (case mime
+                                "application/json" (json-elements r)
+                                "text/csv" (csv->json (read-csv r)))]
+                    (.add builder (into {} (map (fn [[k v]]
+                                                  [k (json/write-str v)]))
+                                        row)))))))))
@@ -20,57 +20,223 @@
   (:require [clojure.data.csv :refer [read-csv]]
             [clojure.data.json :as json]
             [clojure.java.io :refer [reader]]
+            [clojure.set :refer [intersection union]]
             [clojure.string :refer [blank?]]
-            [json-schema.infer :as json-schema]))
+            [comlake.core.extract.data :refer [element-seq scan-csv]])
+  (:import (comlake.core.extract JsonElements)
+           (java.util.concurrent RejectedExecutionException
+                                 ThreadLocalRandom)))
 
 (def re-number
   "JSON number regular expression."
   #"-?(?:0|[1-9]\d*)(?:\.\d+)?(?:[eE][+-]?\d+)?")
 
+(defn sample
+  "Return a sample of at most n records, either the first ones
+  or a uniform reservoir sample according to given method,
+  and whether it contains every record.  Only the sample is held
+  in memory at any time."
+  [method n records]
+  (case method
+    "head" (let [head (take (inc n) records)]
+             [(take n head) (<= (count head) n)])
+    "reservoir" (loop [i 0
+                       reservoir []
+                       records records]
+                  (if (seq records)
+                    (recur (inc i)
+                           (let [j (if (< i n)
+                                     i
+                                     (.nextLong (ThreadLocalRandom/current)
+                                                (inc i)))]
+                             (if (< j n)
+                               (assoc reservoir j (first records))
+                               reservoir))
+                           (rest records))
+                    [reservoir (<= i n)]))))
+
+(defn json-type
+  "Return the JSON schema type of given value."
+  [value]
+  (cond (nil? value) "null"
+        (boolean? value) "boolean"
+        (integer? value) "integer"
+        (number? value) "number"
+        (string? value) "string"
+        (map? value) "object"
+        :else "array"))
+
+(defn merge-schema
+  "Merge two partial schemas into one validating both.
+  Fields are only required if they are in every object."
+  [a b]
+  (cond (nil? a) b
+        (nil? b) a
+        :else (merge
+                {:types (union (:types a) (:types b))}
+                (when (or (:properties a) (:properties b))
+                  {:properties (merge-with merge-schema (:properties a)
+                                           (:properties b))
+                   :required (cond (not (contains? (:types a) "object"))
+                                   (:required b)
+                                   (not (contains? (:types b) "object"))
+                                   (:required a)
+                                   :else (intersection (:required a)
+                                                       (:required b)))})
+                (when (or (:items a) (:items b))
+                  {:items (merge-schema (:items a) (:items b))}))))
+
+(defn value-schema
+  "Return the partial schema of the given JSON value, to be folded
+  with merge-schema."
+  [value]
+  (let [type (json-type value)]
+    (case type
+      "object" {:types #{type}
+                :properties (into {} (map (fn [[k v]] [k (value-schema v)]))
+                                  value)
+                :required (set (keys value))}
+      "array" {:types #{type}
+               :items (reduce merge-schema nil (map value-schema value))}
+      {:types #{type}})))
+
+(defn render-schema
+  "Convert a partial schema into JSON schema."
+  [{:keys [types properties required items]}]
+  (merge {"type" (vec (sort (if (contains? types "number")
+                              (disj types "integer")
+                              types)))}
+         (when (contains? types "object")
+           {"properties" (into (sorted-map)
+                               (map (fn [[k v]] [k (render-schema v)]))
+                               properties)
+            "required" (vec (sort required))})
+         (when items
+           {"items" (render-schema items)})))
+
 (defn infer-json
-  "Infer JSON schema of given content."
-  [cid fs]
-  (->> cid (.fetch fs) reader json/read
-       (json-schema/infer->json {:title cid})))
+  "Infer JSON schema of given content, folded over its elements
+  if it is an array, which may be sampled by the given method.
+  Return the schema and whether it was inferred from only a sample."
+  [cid fs [method n]]
+  (with-open [r (reader (.fetch fs cid))]
+    (let [elements (JsonElements. r)
+          values (element-seq elements)
+          [values complete?] (if method
+                               (sample method n values)
+                               [values true])
+          folded (reduce merge-schema nil (map value-schema values))]
+      (if (.isArray elements)
+        ;; Items of an empty array are left unconstrained.
+        [(cond-> {"type" ["array"]}
+           folded (assoc "items" (render-schema folded)))
+         (not complete?)]
+        [(render-schema folded) false]))))
+
+(defn csv-types
+  "Infer the type of each of the n columns of given CSV records,
+  only considering numbers and strings."
+  [n records]
+  (reduce (partial mapv #(cond
+                           (or (= %1 "string") (blank? %2)) %1
+                           (re-matches re-number %2) "number"
+                           :else "string"))
+          (vec (repeat n "number"))
+          records))
+
+(defn join-types
+  "Join column types inferred from different parts of the same table,
+  where strings generalize numbers."
+  [& types]
+  (apply mapv #(if (every? #{"number"} %&) "number" "string") types))
+
+(defn csv-schema
+  "Return the JSON schema of a table of given column names and types."
+  [names types]
+  {"type" "array"
+   "items" {"type" "object"
+            "properties" (zipmap names (map #(-> {"type" %}) types))}})
 
 (defn infer-csv
-  "Infer schema of given CSV content."
-  [cid fs]
-  (let [file (->> cid (.fetch fs) reader read-csv)
-        names (first file)
-        types (map #(-> {"type" %})
-                   (reduce (partial map #(cond ; only consider number and string
-                                           (or (= %1 "string") (blank? %2)) %1
-                                           (re-matches re-number %2) "number"
-                                           :else "string"))
-                           (repeat (count names) "number")
-                           (rest file)))]
+  "Infer schema of given CSV content, from a sample of its records
+  if a sampling method is given, otherwise in parallel if it is
+  available locally and large enough.  Return the schema and whether
+  it was inferred from only a sample."
+  [cid fs [method n]]
+  (if-let [[names chunks] (when-not method
+                            (some-> (.local fs cid)
+                                    (scan-csv #(list (csv-types (count %1)
+                                                                %2)))))]
+    (with-open [^java.lang.AutoCloseable chunks chunks]
+      [(csv-schema names (reduce join-types (csv-types (count names) nil)
+                                 (iterator-seq chunks)))
+       false])
+    (with-open [r (reader (.fetch fs cid))]
+      (let [[names & records] (read-csv r)
+            [records complete?] (if method
+                                  (sample method n records)
+                                  [records true])]
+        [(csv-schema names (csv-types (count names) records))
+         (not complete?)]))))
+
+(defn infer-schema
+  "Infer schema of given content of type mime, from a sample
+  if a sampling method and size are given, and encode it in JSON."
+  [cid mime fs [method n :as sampling]]
+  (let [[schema sampled?] (case mime
+                            "application/json" (infer-json cid fs sampling)
+                            "text/csv" (infer-csv cid fs sampling))]
     (json/write-str
-      {"$schema" "http://json-schema.org/draft-07/schema#"
-       "title" cid
-       "type" "array"
-       "items" {"type" "object"
-                "properties" (zipmap names types)}})))
+      (merge {"$schema" "http://json-schema.org/draft-07/schema#"
+              "title" cid}
+             schema
+             (when sampled?
+               {"sampled" {"method" method "records" n}})))))
+
+(defn sampled?
+  "Check if given JSON schema was inferred from only a sample."
+  [schema]
+  (contains? (json/read-str schema) "sampled"))
 
 (defn schema
-  "Return schema of given content."
-  [cid mime fs db]
+  "Return schema of given content, inferring and saving it if necessary."
+  [cid mime fs db sampling]
   (let [saved (.getSchema db cid)]
     (if (blank? saved)
-      (let [result (case mime
-                     "application/json" (infer-json cid fs)
-                     "text/csv" (infer-csv cid fs))]
+      (let [result (infer-schema cid mime fs sampling)]
         (.setSchema db cid result) ; run this async?
         result)
       saved)))
 
 (defn metadata-extractor
-  "Construct an extractor updating given database in the future."
-  [fs db]
-  ;; TODO: invalidate cache
-  (memoize (fn [cid mime]
-             (future
-               (case mime
-                 ("application/json" "text/csv") (schema cid mime fs db)
-                 ;; TODO: multimedia metadata
-                 nil)))))
+  "Construct an extractor updating given database on the task cache,
+  which bounds concurrent extractions and shares their results.
+
+  Schemas are inferred from samples if so configured, and then
+  upgraded to exact ones in the background if that is enabled."
+  [fs db tasks cfg]
+  (let [sampling (when (pos? (.-schemaSample cfg))
+                   [(.-schemaSampling cfg) (.-schemaSample cfg)])
+        upgrade (fn [cid mime]
+                  (.setSchema db cid (infer-schema cid mime fs nil))
+                  (.invalidate tasks [cid mime])
+                  nil)]
+    (fn [cid mime]
+      (let [sampled (volatile! false)
+            future (.submit tasks [cid mime]
+                            #(case mime
+                               ("application/json" "text/csv")
+                               (let [result (schema cid mime fs db sampling)]
+                                 (vreset! sampled (and (.-schemaUpgrade cfg)
+                                                       (sampled? result)))
+                                 result)
+                               ;; TODO: multimedia metadata
+                               nil))]
+        ;; Only upgrade once the sampled schema is cached,
+        ;; lest it be cached again after the upgrade invalidates it.
+        (.thenRun future #(when @sampled
+                            (try (.submit tasks [cid mime :exact]
+                                          (partial upgrade cid mime))
+                                 (catch RejectedExecutionException e
+                                   nil)))) ; retried on the next cache miss
+        future))))
@@ -0,0 +1,373 @@
+/*
+ * Local content cache
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.fs;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import comlake.core.Cache;
+import comlake.core.fs.FileSystem;
+
+/**
+ * File system decorator keeping fetched content in a local directory,
+ * with the smallest ones also kept in memory.
+ *
+ * Since content is addressed by its hash, cached copies never go stale
+ * and are only evicted to stay within the size limit.
+**/
+public class BlockCache implements FileSystem {
+    /** Largest content to be kept in memory. **/
+    private static final int HOT_SIZE = 1 << 16;
+    private static final Pattern BASE58 = Pattern.compile(
+        "[1-9A-HJ-NP-Za-km-z]+");
+
+    /** Input stream copying what has been read to a temporary file. **/
+    private static class Tee extends FilterInputStream {
+        public Path path;
+        public long size = 0;
+        public boolean overflow = false;
+        /** Whether the end of the stream has been reached. **/
+        public boolean complete = false;
+        private OutputStream out;
+        private long limit;
+
+        public Tee(InputStream in, Path path, long limit) throws IOException {
+            super(in);
+            this.path = path;
+            this.limit = limit;
+            out = Files.newOutputStream(path);
+        }
+
+        /** Copy the given bytes until the file grows over the limit. **/
+        private void write(byte[] b, int off, int len) throws IOException {
+            if (overflow || len <= 0)
+                return;
+            size += len;
+            if (size > limit) {
+                overflow = true;
+                out.close();
+            } else {
+                out.write(b, off, len);
+            }
+        }
+
+        public int read() throws IOException {
+            var b = super.read();
+            if (b >= 0)
+                write(new byte[] {(byte) b}, 0, 1);
+            else
+                complete = true;
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            var n = super.read(b, off, len);
+            if (n < 0)
+                complete = true;
+            write(b, off, n);
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            // Skipped bytes are missing from the copy.
+            overflow = true;
+            out.close();
+            return super.skip(n);
+        }
+
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * Content being fetched from the underlying file system,
+     * cached once it has been read to the end.
+     *
+     * Fetches of the same content in the meantime wait for the fill,
+     * which completes with whether the content has been cached.
+     * It completes early as soon as the copy overflows, so they need not
+     * wait for content that would not be cached anyway.
+    **/
+    private class Filling extends Tee {
+        private String cid;
+        private CompletableFuture<Boolean> fill;
+        private boolean closed = false;
+
+        public Filling(String cid, CompletableFuture<Boolean> fill,
+                       InputStream in) throws IOException {
+            super(in, Files.createTempFile(dir, null, null), capacity);
+            this.cid = cid;
+            this.fill = fill;
+        }
+
+        public int read() throws IOException {
+            var b = super.read();
+            if (overflow)
+                release(cid, fill, false);
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            var n = super.read(b, off, len);
+            if (overflow)
+                release(cid, fill, false);
+            return n;
+        }
+
+        public long skip(long n) throws IOException {
+            var skipped = super.skip(n);
+            release(cid, fill, false);
+            return skipped;
+        }
+
+        public void close() throws IOException {
+            if (closed)
+                return;
+            closed = true;
+            var cached = false;
+            try {
+                super.close();
+                if (complete && !overflow) {
+                    Files.move(path, dir.resolve(cid),
+                               ATOMIC_MOVE, REPLACE_EXISTING);
+                    disk.put(cid, size);
+                    cached = true;
+                }
+            } finally {
+                release(cid, fill, cached);
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private FileSystem fs;
+    private Path dir;
+    private long capacity;
+    private Cache<String, Long> disk;
+    private Cache<String, byte[]> heap;
+    private Map<String, CompletableFuture<Boolean>> filling;
+
+    /**
+     * Wrap the given file system with a cache of at most capacity bytes
+     * in directory dir and heapCapacity bytes in memory.
+    **/
+    public BlockCache(FileSystem filesystem, String dir,
+                      long capacity, long heapCapacity) throws IOException {
+        fs = filesystem;
+        this.dir = Files.createDirectories(Paths.get(dir));
+        this.capacity = capacity;
+        disk = new Cache<String, Long>(capacity, size -> size, (cid, size) -> {
+            try {
+                Files.deleteIfExists(this.dir.resolve(cid));
+            } catch (IOException e) {
+                // Leftovers will be picked up again on restart.
+            }
+        });
+        heap = new Cache<String, byte[]>(heapCapacity, bytes -> bytes.length);
+        filling = new ConcurrentHashMap<>();
+
+        // Resume from previous runs, in the order of last use.
+        try (var files = Files.list(this.dir)) {
+            var paths = files.toArray(Path[]::new);
+            for (var path : paths)
+                if (!BASE58.matcher(path.getFileName().toString()).matches())
+                    Files.deleteIfExists(path);
+            Arrays.sort(paths, Comparator.comparingLong(path -> {
+                try {
+                    return Files.getLastModifiedTime(path).toMillis();
+                } catch (IOException e) {
+                    return 0;
+                }
+            }));
+            for (var path : paths)
+                if (Files.isRegularFile(path))
+                    disk.put(path.getFileName().toString(), Files.size(path));
+        }
+    }
+
+    /** Create an empty directory and return the CID. **/
+    public String mkdir() {
+        return fs.mkdir();
+    }
+
+    /** Copy src into dest/path and return the new directory's CID. **/
+    public String cp(String src, String dest, String path) {
+        return fs.cp(src, dest, path);
+    }
+
+    /** Copy sources into dest and return the new directory's CID. **/
+    public String cp(String dest, Map<String, String> sources) {
+        return fs.cp(dest, sources);
+    }
+
+    /**
+     * Add the content of the given stream to underlying storage
+     * and return the CID.
+     *
+     * The content is cached on its way, since it is likely to be read
+     * again right away for metadata extraction.
+    **/
+    public String add(InputStream istream) {
+        Tee tee;
+        try {
+            tee = new Tee(istream, Files.createTempFile(dir, null, null),
+                          capacity);
+        } catch (IOException e) {
+            return fs.add(istream);
+        }
+
+        try (tee) {
+            var cid = fs.add(tee);
+            if (cid != null && !tee.overflow
+                && BASE58.matcher(cid).matches()) {
+                tee.close();
+                Files.move(tee.path, dir.resolve(cid),
+                           ATOMIC_MOVE, REPLACE_EXISTING);
+                disk.put(cid, tee.size);
+            }
+            return cid;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            try {
+                Files.deleteIfExists(tee.path);
+            } catch (IOException e) {
+                // The stray file is cleaned up on restart.
+            }
+        }
+    }
+
+    /** List the directory content if applicable, otherwise return nil. **/
+    public Map<String, String> ls(String cid) {
+        return fs.ls(cid);
+    }
+
+    /** Return the path of the cached content, or null if missing. **/
+    private Path cached(String cid) {
+        if (!BASE58.matcher(cid).matches() || disk.get(cid) == null)
+            return null;
+        var path = dir.resolve(cid);
+        if (Files.isRegularFile(path))
+            return path;
+        disk.remove(cid);
+        return null;
+    }
+
+    /** Stream the cached content, or return null if missing. **/
+    private InputStream hit(String cid) {
+        var bytes = heap.get(cid);
+        if (bytes != null)
+            return new ByteArrayInputStream(bytes);
+
+        var path = cached(cid);
+        if (path == null)
+            return null;
+        try {
+            if (Files.size(path) > HOT_SIZE)
+                return Files.newInputStream(path);
+            bytes = Files.readAllBytes(path);
+            heap.put(cid, bytes);
+            return new ByteArrayInputStream(bytes);
+        } catch (IOException e) {
+            return null;  // evicted in the meantime
+        }
+    }
+
+    /** Finish the given fill of the cache, whether it succeeded. **/
+    private void release(String cid, CompletableFuture<Boolean> fill,
+                         boolean cached) {
+        filling.remove(cid, fill);
+        fill.complete(cached);
+    }
+
+    /**
+     * Stream the specified file if given valid content identifier,
+     * otherwise return nil.
+     *
+     * Content missing from the cache is streamed from the underlying
+     * file system right away and cached once it is read to the end,
+     * unless it is too large.  Concurrent misses of the same content
+     * wait for that single download to be cached and read the copy,
+     * falling back to their own download if it is not.
+    **/
+    public InputStream fetch(String cid) {
+        var content = hit(cid);
+        if (content != null || !BASE58.matcher(cid).matches())
+            return content != null ? content : fs.fetch(cid);
+
+        var fill = new CompletableFuture<Boolean>();
+        var other = filling.putIfAbsent(cid, fill);
+        if (other != null) {
+            if (other.join() && (content = hit(cid)) != null)
+                return content;
+            return fs.fetch(cid);
+        }
+        // The previous fill might have finished right before.
+        content = hit(cid);
+        if (content != null) {
+            release(cid, fill, true);
+            return content;
+        }
+
+        try {
+            content = fs.fetch(cid);
+        } catch (RuntimeException e) {
+            release(cid, fill, false);
+            throw e;
+        }
+        if (content == null) {
+            release(cid, fill, false);
+            return null;
+        }
+        try {
+            return new Filling(cid, fill, content);
+        } catch (IOException e) {
+            release(cid, fill, false);
+            return content;
+        }
+    }
+
+    /**
+     * Return the path to the cached copy of the specified file
+     * if it has been fetched before, otherwise return nil.
+    **/
+    public Path local(String cid) {
+        return cached(cid);
+    }
+}
@@ -20,6 +20,7 @@
 package comlake.core.fs;
 
 import java.io.InputStream;
+import java.nio.file.Path;
 import java.util.Map;
 
 public interface FileSystem {
@@ -29,6 +30,12 @@ public interface FileSystem {
     /** Copy src into dest/path and return the new directory's CID. **/
     public String cp(String src, String dest, String path);
 
+    /**
+     * Copy each source into dest at its path, as mapped from the latter
+     * to the former, and return the resulting directory's CID.
+    **/
+    public String cp(String dest, Map<String, String> sources);
+
     /**
      * Add the content of the given stream to underlying storage
      * and return the CID.
@@ -43,4 +50,10 @@ public interface FileSystem {
      * otherwise return nil.
     **/
     public InputStream fetch(String cid);
+
+    /**
+     * Return the path to a local copy of the specified file
+     * if one is available, otherwise return nil.
+    **/
+    public Path local(String cid);
 }
@@ -21,7 +21,10 @@ package comlake.core.fs;
 
 import java.io.InputStream;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Map;
+import static java.net.URLEncoder.encode;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.UUID.randomUUID;
 import static java.util.stream.Collectors.toMap;
 
@@ -29,13 +32,35 @@ import io.ipfs.api.IPFS;
 import static io.ipfs.api.NamedStreamable.InputStreamWrapper;
 import static io.ipfs.multihash.Multihash.fromBase58;
 
+import comlake.core.Metrics;
 import comlake.core.fs.FileSystem;
 
 public class InterPlanetaryFileSystem implements FileSystem {
     private IPFS ipfs;
+    private Metrics.Histogram addTime;
+    private Metrics.Histogram catTime;
+    private Metrics.Histogram statTime;
+    private Metrics.Histogram cpTime;
+    private Metrics.Histogram rmTime;
+    private Metrics.Histogram pinTime;
+    private Metrics.Histogram lsTime;
 
-    public InterPlanetaryFileSystem(String multiaddr) {
+    /** Register the time taken by the given call to the daemon. **/
+    private static Metrics.Histogram timer(Metrics metrics, String call) {
+        return metrics.histogram("comlake_ipfs_call_duration_seconds",
+                                 "Time taken by calls to the IPFS daemon",
+                                 Metrics.label("call", call));
+    }
+
+    public InterPlanetaryFileSystem(String multiaddr, Metrics metrics) {
         ipfs = new IPFS(multiaddr);
+        addTime = timer(metrics, "add");
+        catTime = timer(metrics, "cat");
+        statTime = timer(metrics, "files/stat");
+        cpTime = timer(metrics, "files/cp");
+        rmTime = timer(metrics, "files/rm");
+        pinTime = timer(metrics, "pin/add");
+        lsTime = timer(metrics, "ls");
     }
 
     /** Create an empty directory and return the CID. **/
@@ -46,17 +71,21 @@ public class InterPlanetaryFileSystem implements FileSystem {
     /** Add the content of the given stream to IPFS and return the CID. **/
     public String add(InputStream istream) {
         var w = new InputStreamWrapper(istream);
+        var start = System.nanoTime();
         try {
             return ipfs.add(w).get(0).hash.toString();
         } catch (NullPointerException e) {
             return null;
         } catch (IOException e) {
             return null;
+        } finally {
+            addTime.since(start);
         }
     }
 
     /** Retrieve content status. **/
     private Map<String, String> stat(String path) {
+        var start = System.nanoTime();
         try {
             // TODO: Implement this in the IPFS client library
             return ipfs.retrieveMap("files/stat?arg="+path);
@@ -64,6 +93,8 @@ public class InterPlanetaryFileSystem implements FileSystem {
             return null; // invalid CID
         } catch (IOException e) {
             return null;
+        } finally {
+            statTime.since(start);
         }
     }
 
@@ -73,26 +104,64 @@ public class InterPlanetaryFileSystem implements FileSystem {
         return status != null && status.get("Type").equals("directory");
     }
 
+    /** Copy the given MFS source to the given encoded destination. **/
+    private void copy(String src, String dest) throws IOException {
+        var start = System.nanoTime();
+        try {
+            ipfs.retrieve("files/cp?arg=" + src + "&arg=" + dest);
+        } finally {
+            cpTime.since(start);
+        }
+    }
+
     /**
      * Copy src into dest/path and return the new directory's CID.
      *
      * Return null if dest isn't a directory.
     **/
     public String cp(String src, String dest, String path) {
-        if (!isdir("/ipfs/"+dest))
-            return null;
+        return cp(dest, Map.of(path, src));
+    }
 
+    /**
+     * Copy each source into dest at its path, as mapped from the latter
+     * to the former, and return the new directory's CID.
+     *
+     * The directory is built in a single MFS working copy,
+     * so only its final root is pinned.  Return null if dest
+     * isn't a directory or any source fails to be copied.
+    **/
+    public String cp(String dest, Map<String, String> sources) {
+        if (sources.isEmpty())
+            return isdir("/ipfs/" + dest) ? dest : null;
+
+        // Copying into a file fails, so dest needs not be checked.
         var tmp = "/" + randomUUID().toString();
         try {
             // TODO: Implement this in the IPFS client library
-            ipfs.retrieve("files/cp?arg=/ipfs/"+dest+"&arg="+tmp);
-            ipfs.retrieve("files/cp?arg=/ipfs/"+src+"&arg="+tmp+"/"+path);
+            copy("/ipfs/" + dest, tmp);
+            for (var source : sources.entrySet())
+                copy("/ipfs/" + source.getValue(),
+                     encode(tmp + "/" + source.getKey(), UTF_8));
             var cid = stat(tmp).get("Hash");
-            ipfs.pin.add(fromBase58(cid));
-            ipfs.retrieve("files/rm?arg="+tmp+"&force=true");
+            var start = System.nanoTime();
+            try {
+                ipfs.pin.add(fromBase58(cid));
+            } finally {
+                pinTime.since(start);
+            }
             return cid;
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {
             return null;
+        } finally {
+            var start = System.nanoTime();
+            try {
+                ipfs.retrieve("files/rm?arg=" + tmp + "&force=true");
+            } catch (IOException | RuntimeException e) {
+                // Nothing was copied then.
+            } finally {
+                rmTime.since(start);
+            }
         }
     }
 
@@ -101,22 +170,36 @@ public class InterPlanetaryFileSystem implements FileSystem {
         if (!isdir("/ipfs/"+cid))
             return null;
 
+        var start = System.nanoTime();
         try {
             return ipfs.ls(fromBase58(cid)).stream().collect(toMap(
                 node -> node.name.get(), node -> node.hash.toString()));
         } catch (IOException e) {
             return null;
+        } finally {
+            lsTime.since(start);
         }
     }
 
-    /** Stream the IPFS file if given CIDv0 is valid, otherwise return nil. **/
+    /**
+     * Stream the IPFS file if given CIDv0 is valid, otherwise return nil.
+     * Only the time to start streaming is recorded.
+    **/
     public InputStream fetch(String cid) {
+        var start = System.nanoTime();
         try {
             return ipfs.catStream(fromBase58(cid));
         } catch (IllegalStateException e) {
             return null;
         } catch (IOException e) {
             return null;
+        } finally {
+            catTime.since(start);
         }
     }
+
+    /** Return nil since content is only available through the daemon. **/
+    public Path local(String cid) {
+        return null;
+    }
 }
@@ -0,0 +1,297 @@
+/*
+ * Local content-addressed file system
+ * Copyright (C) 2021  Nguyễn Gia Phong
+ *
+ * This file is part of comlake.core.
+ *
+ * comlake.core is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License version 3
+ * as published by the Free Software Foundation.
+ *
+ * comlake.core is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package comlake.core.fs;
+
+import java.io.InputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+
+import io.ipfs.multihash.Multihash;
+
+import comlake.core.fs.FileSystem;
+
+/**
+ * File system storing content in a local directory under the base58
+ * multihash of its SHA-256 digest, i.e. in the format of CIDv0,
+ * for single-node deployments without an IPFS daemon.
+ *
+ * Files are hashed while being written to a temporary file, which is
+ * then renamed to its CID, so a file is either complete or absent.
+ * Directories are stored likewise as JSON objects mapping names to CIDs.
+ * Unlike IPFS, content is hashed as is rather than as a Merkle DAG,
+ * so the CIDs of the two file systems are not interchangeable.
+**/
+public class LocalFileSystem implements FileSystem {
+    private static final Pattern BASE58 = Pattern.compile(
+        "Qm[1-9A-HJ-NP-Za-km-z]{44}");
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** Prefix hashed before directories to tell them apart from files. **/
+    private static final byte[] DIRECTORY = "directory\n".getBytes(UTF_8);
+    private static final Gson gson = new Gson();
+
+    private Path tmp;
+    private Path files;
+    private Path dirs;
+    private String empty;
+
+    /** Store content in the given directory, creating it if necessary. **/
+    public LocalFileSystem(String dir) throws IOException {
+        var root = Files.createDirectories(Paths.get(dir));
+        tmp = Files.createDirectories(root.resolve("tmp"));
+        files = Files.createDirectories(root.resolve("files"));
+        dirs = Files.createDirectories(root.resolve("dirs"));
+        // Leftovers of interrupted writes
+        try (var leftovers = Files.list(tmp)) {
+            for (var path : (Iterable<Path>) leftovers::iterator)
+                Files.deleteIfExists(path);
+        }
+        empty = write(Map.of());
+        if (empty == null)
+            throw new IOException("failed to create empty directory");
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);  // required by the JLS
+        }
+    }
+
+    /** Return the path of the given CID under the given directory. **/
+    private static Path path(Path parent, String cid) {
+        // Sharded by the next-to-last two characters, like flatfs
+        var n = cid.length();
+        return parent.resolve(cid.substring(n - 3, n - 1)).resolve(cid);
+    }
+
+    /**
+     * Move the temporary file to the given directory under the CID
+     * of the digest and return the CID.  Content already stored
+     * is kept instead, since it is identical.
+    **/
+    private static String commit(Path temp, Path parent, MessageDigest digest)
+            throws IOException {
+        var cid = new Multihash(Multihash.Type.sha2_256, digest.digest())
+            .toBase58();
+        var target = path(parent, cid);
+        if (Files.exists(target)) {
+            Files.delete(temp);
+        } else {
+            Files.createDirectories(target.getParent());
+            Files.move(temp, target, ATOMIC_MOVE, REPLACE_EXISTING);
+        }
+        return cid;
+    }
+
+    /** Store the given directory and return its CID, or null on errors. **/
+    private String write(Map<String, String> entries) {
+        var content = gson.toJson(new TreeMap<>(entries)).getBytes(UTF_8);
+        var digest = sha256();
+        digest.update(DIRECTORY);
+        digest.update(content);
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(tmp, null, null);
+            try (var channel = FileChannel.open(temp, WRITE)) {
+                channel.write(ByteBuffer.wrap(content));
+                channel.force(true);
+            }
+            return commit(temp, dirs, digest);
+        } catch (IOException e) {
+            delete(temp);
+            return null;
+        }
+    }
+
+    private static void delete(Path temp) {
+        if (temp == null)
+            return;
+        try {
+            Files.deleteIfExists(temp);
+        } catch (IOException e) {
+            // Removed on restart
+        }
+    }
+
+    /** Create an empty directory and return the CID. **/
+    public String mkdir() {
+        return empty;
+    }
+
+    /** Copy src into dest/path and return the new directory's CID. **/
+    public String cp(String src, String dest, String path) {
+        return cp(dest, Map.of(path, src));
+    }
+
+    /** Return the entries of the given directory, or null. **/
+    private TreeMap<String, Object> open(String cid) {
+        var entries = ls(cid);
+        return entries == null ? null : new TreeMap<String, Object>(entries);
+    }
+
+    /**
+     * Copy src into the given directory being built at the given path,
+     * starting from its part at index i, and return whether it succeeds.
+     * Like IPFS, parents of the path must exist and the path must not.
+    **/
+    private boolean put(TreeMap<String, Object> dir, String[] parts, int i,
+                        String src) {
+        var name = parts[i];
+        if (name.isEmpty())
+            return false;
+        if (i + 1 == parts.length)
+            return dir.putIfAbsent(name, src) == null;
+        var child = dir.get(name);
+        if (child instanceof String) {
+            child = open((String) child);
+            if (child == null)
+                return false;
+            dir.put(name, child);
+        }
+        return child != null
+            && put((TreeMap<String, Object>) child, parts, i + 1, src);
+    }
+
+    /** Store the given directory being built and return its CID. **/
+    private String save(TreeMap<String, Object> dir) {
+        var entries = new TreeMap<String, String>();
+        for (var entry : dir.entrySet()) {
+            var value = entry.getValue();
+            var cid = value instanceof String ? (String) value
+                : save((TreeMap<String, Object>) value);
+            if (cid == null)
+                return null;
+            entries.put(entry.getKey(), cid);
+        }
+        return write(entries);
+    }
+
+    /**
+     * Copy each source into dest at its path, as mapped from the latter
+     * to the former, and return the new directory's CID.
+     *
+     * The directory is built in memory, so only the directories
+     * in the result are stored.  Return null if dest isn't a directory
+     * or any source fails to be copied.
+    **/
+    public String cp(String dest, Map<String, String> sources) {
+        var root = open(dest);
+        if (root == null)
+            return null;
+        for (var source : sources.entrySet()) {
+            var src = source.getValue();
+            if (src == null || !BASE58.matcher(src).matches()
+                || !Files.exists(path(files, src))
+                   && !Files.exists(path(dirs, src)))
+                return null;
+            var parts = source.getKey().replaceAll("^/+|/+$", "").split("/");
+            if (!put(root, parts, 0, src))
+                return null;
+        }
+        return sources.isEmpty() ? dest : save(root);
+    }
+
+    /**
+     * Add the content of the given stream, hashing it on the way,
+     * and return the CID, or null if it is empty.
+    **/
+    public String add(InputStream istream) {
+        var digest = sha256();
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(tmp, null, null);
+            var size = 0L;
+            try (var channel = FileChannel.open(temp, WRITE)) {
+                var buffer = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = istream.read(buffer)) >= 0) {
+                    digest.update(buffer, 0, n);
+                    var wrapped = ByteBuffer.wrap(buffer, 0, n);
+                    while (wrapped.hasRemaining())
+                        channel.write(wrapped);
+                    size += n;
+                }
+                channel.force(true);
+            }
+            if (size == 0) {
+                delete(temp);
+                return null;
+            }
+            return commit(temp, files, digest);
+        } catch (IOException e) {
+            delete(temp);
+            return null;
+        }
+    }
+
+    /** List the directory content if applicable, otherwise return nil. **/
+    public Map<String, String> ls(String cid) {
+        if (cid == null || !BASE58.matcher(cid).matches())
+            return null;
+        try (var reader = Files.newBufferedReader(path(dirs, cid), UTF_8)) {
+            return gson.fromJson(
+                reader, new TypeToken<Map<String, String>>(){}.getType());
+        } catch (IOException | JsonParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Stream the file if given valid content identifier,
+     * otherwise return nil.
+    **/
+    public InputStream fetch(String cid) {
+        var path = local(cid);
+        if (path == null)
+            return null;
+        try {
+            return Channels.newInputStream(FileChannel.open(path));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Return the path to the stored file, or nil if there is none. **/
+    public Path local(String cid) {
+        if (cid == null || !BASE58.matcher(cid).matches())
+            return null;
+        var path = path(files, cid);
+        return Files.isRegularFile(path) ? path : null;
+    }
+}
@@ -20,10 +20,16 @@
   (:gen-class)
   (:require [aleph.http :refer [start-server]]
             [clojure.string :refer [starts-with?]]
+            [manifold.deferred :refer [deferred error! success!]]
             [taoensso.timbre :refer [debug]])
-  (:import (comlake.core Configuration HttpHandler)
-           (comlake.core.fs InterPlanetaryFileSystem)
-           (comlake.core.db PostgreSQL)))
+  (:import (java.util.concurrent ArrayBlockingQueue Executor
+                                 RejectedExecutionException ThreadFactory
+                                 ThreadPoolExecutor TimeUnit)
+           (java.util.function DoubleSupplier)
+           (comlake.core Configuration HttpHandler Metrics Metrics$Route)
+           (comlake.core.fs BlockCache InterPlanetaryFileSystem
+                            LocalFileSystem)
+           (comlake.core.db ContentCache PostgreSQL SearchCache)))
 
 (defn route
   "Route HTTP endpoints."
@@ -34,14 +40,20 @@
       (and (= method :post) (= uri "/dir")) (.mkdir handler)
       (and (= method :post) (= uri "/file")) (.save handler (:headers request)
                                                             (:body request))
+      (and (= method :post) (= uri "/bulk")) (.bulk handler (:body request))
       (and (= method :post) (= uri "/cp")) (.cp handler (:body request))
       (and (= method :post) (= uri "/dataset")) (.add handler (:body request))
       (and (= method :post) (= uri "/update")) (.update handler (:body request))
-      (and (= method :post) (= uri "/find")) (.find handler (:body request))
+      (and (= method :post)
+           (= uri "/find")) (.find handler (:body request)
+                                   (:query-string request)
+                                   (:headers request))
+      (and (= method :get) (= uri "/metrics")) (.metrics handler)
       (and (= method :get)
            (starts-with? uri "/dir/")) (.ls handler (subs uri 5))
       (and (= method :get)
-           (starts-with? uri "/file/")) (.get handler (subs uri 6))
+           (starts-with? uri "/file/")) (.get handler (subs uri 6)
+                                              (:headers request))
       (and (= method :get)
            (starts-with? uri "/schema/")) (.schema handler (subs uri 8))
       (and (= method :post)
@@ -49,22 +61,142 @@
                                                              (:body request))
       :else (HttpHandler/error "unsupported" 404))))
 
+(defn log
+  "Log the request and the response, returning the latter
+  as a Clojure map."
+  [request response]
+  ;; java.util.Map.of does not produce clojure map.
+  (let [response (reduce (fn [m [k v]] (assoc m k v)) {} response)]
+    (debug request "=>" response)
+    response))
+
+(defn respond
+  "Route the request and return a Ring response,
+  whose body is counted by the given metrics as it is sent."
+  [request handler ^Metrics metrics]
+  (update (log request (route request handler)) :body #(.stream metrics %)))
+
+(defn endpoint
+  "Return the name of the endpoint of the given URI."
+  [uri]
+  (second (re-find #"^/([^/]+)" uri)))
+
+(defn make-executor
+  "Construct a pool of the given number of threads named after
+  the endpoint, with at most queue-limit requests waiting for them."
+  [endpoint threads queue-limit]
+  (let [counter (atom 0)]
+    (ThreadPoolExecutor.
+      threads threads 0 TimeUnit/MILLISECONDS
+      (ArrayBlockingQueue. queue-limit)
+      (reify ThreadFactory
+        (newThread [_ task]
+          (doto (Thread. task (str endpoint "-" (swap! counter inc)))
+            (.setDaemon true)))))))
+
+(defn dispatch
+  "Respond to the request on the given executor, returning a deferred
+  response, or one with status 503 if too many requests are pending.
+  The latency and concurrency of the request are recorded to timer."
+  [^Executor executor request handler metrics ^Metrics$Route timer]
+  (let [start (.start timer)
+        response (deferred)]
+    (try
+      (.execute executor #(try
+                            (success! response
+                                      (respond request handler metrics))
+                            (catch Throwable e
+                              (error! response e))
+                            (finally
+                              (.done timer start))))
+      response
+      (catch RejectedExecutionException _
+        (.done timer start)
+        (log request (HttpHandler/error "too many pending requests" 503))))))
+
 (defn make-handler
-  "Construct a Ring request handler."
-  [fs db]
-  (let [handler (HttpHandler. fs db)]
+  "Construct a Ring request handler, which blocks only the worker pool
+  of the requested endpoint and returns a deferred response."
+  [fs db cfg ^Metrics metrics]
+  (let [handler (HttpHandler. fs db cfg metrics)
+        executors (into {} (for [[endpoint threads] (.-workers cfg)]
+                             [endpoint (make-executor endpoint threads
+                                                      (.-workerQueue cfg))]))
+        timers (into {} (for [endpoint (conj (vec Configuration/ENDPOINTS)
+                                             "metrics")]
+                          [endpoint (.route metrics endpoint)]))
+        other (.route metrics "other")]
     (fn [request]
-      ;; java.util.Map.of does not produce clojure map.
-      (let [response (reduce (fn [m [k v]] (assoc m k v)) {}
-                             (route request handler))]
-        (debug request "=>" response)
-        response))))
+      (let [name (endpoint (:uri request))
+            ^Metrics$Route timer (get timers name other)]
+        (if-let [executor (get executors name)]
+          (dispatch executor request handler metrics timer)
+          (let [start (.start timer)]
+            (try
+              (respond request handler metrics)
+              (finally
+                (.done timer start)))))))))
+
+(defn supplier
+  "Wrap the given function as a DoubleSupplier."
+  [f]
+  (reify DoubleSupplier
+    (getAsDouble [_] (double (f)))))
+
+(defn register-cache
+  "Register the hits and misses of the named cache."
+  [^Metrics metrics cache-name cache]
+  (let [label (Metrics/label "cache" cache-name)]
+    (.counter metrics "comlake_cache_hits_total"
+              "Lookups served from in-memory caches" label
+              (supplier #(.hits cache)))
+    (.counter metrics "comlake_cache_misses_total"
+              "Lookups missing in-memory caches" label
+              (supplier #(.misses cache)))))
+
+(defn filesystem
+  "Construct the file system of the given configuration, either local
+  or IPFS behind its block cache, whose calls are recorded to metrics."
+  [cfg metrics]
+  (if (= (.-fsBackend cfg) "local")
+    ;; Already local, so there is nothing to cache.
+    (LocalFileSystem. (.-fsLocalDir cfg))
+    (let [ipfs (InterPlanetaryFileSystem. (.-ipfsMultiAddr cfg) metrics)]
+      (if (pos? (.-blockCacheSize cfg))
+        (BlockCache. ipfs (.-blockCacheDir cfg)
+                     (.-blockCacheSize cfg) (.-blockCacheHeap cfg))
+        ipfs))))
+
+(defn database
+  "Construct the PostgreSQL database of the given configuration
+  behind its caches, whose hits and misses are registered to metrics."
+  [cfg ^Metrics metrics]
+  (let [contents (ContentCache. (PostgreSQL. cfg metrics)
+                                (.-contentCacheSize cfg)
+                                (.-contentCacheWarm cfg))
+        db (SearchCache. contents
+                         (.-findCacheSize cfg) (.-findCacheEntry cfg)
+                         ;; Only replicas may lag behind writes.
+                         (if (empty? (.-psqlReplicas cfg))
+                           0
+                           (.-psqlReadYourWrites cfg)))]
+    (register-cache metrics "content" contents)
+    (register-cache metrics "find" db)
+    db))
+
+(defn serve
+  "Start the HTTP server on the given port over the given storage."
+  [fs db cfg metrics port]
+  ;; Requests are handed off to the endpoints' pools right away,
+  ;; so there is no need for Aleph's own executor.
+  (start-server (make-handler fs db cfg metrics)
+                {:port port :executor :none}))
 
 (defn -main
   "Start the HTTP server."
   ([] (-main "8090"))
   ([port & args]
    (let [cfg (Configuration.)
-         fs (InterPlanetaryFileSystem. (.-ipfsMultiAddr cfg))
-         db (PostgreSQL. (.-psqlUrl cfg) (.-psqlUser cfg) (.-psqlPasswd cfg))]
-    (start-server (make-handler fs db) {:port (Integer/parseInt port)}))))
+         metrics (Metrics.)]
+    (serve (filesystem cfg metrics) (database cfg metrics)
+           cfg metrics (Integer/parseInt port)))))
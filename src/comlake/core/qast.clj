@@ -18,115 +18,87 @@
 (ns comlake.core.qast
   "Query abstract syntax tree parser."
   (:require [clojure.data.json :as json]
-            [clojure.string :as string]))
+            [clojure.string :as string])
+  (:import (comlake.core Evaluator)
+           (comlake.core.extract Extraction)))
+
+(def re-column
+  "PostgreSQL unquoted column name regular expression."
+  #"[A-Za-z_][0-9A-Za-z_]*")
+
+(defn psql-op
+  "Lift a function joining SQL fragments into one joining compiled operands,
+  each of which is a vector of SQL and its parameters."
+  [f]
+  (fn [args]
+    (into [(f (map first args))] (mapcat rest args))))
 
 (defn getter-psql
-  "Return a getter of given fields for PostgreSQL."
-  [coll]
-  (if (= "()" (first coll))
-    (getter-psql (cons (string/replace (second coll) #"^'(.*)'$" "$1")
-                       (nthrest coll 2)))
-    (string/join "->" coll)))
+  "Return a getter of given fields for PostgreSQL.
+  A field of the current row must be a valid column name."
+  [[object & fields :as args]]
+  (if (= ["()"] object)
+    (let [[[sql column] & others] fields]
+      (when (and (= "?" sql) (string? column) (re-matches re-column column))
+        ((psql-op #(string/join "->" (cons column %))) others)))
+    ((psql-op #(string/join "->" %)) args)))
 
 (def ops-psql
   "Supported query operators and their predicates for number of operands."
-  {"$" [(constantly "") #(= % 0)]
+  {"$" [(psql-op (constantly "")) #(= % 0)]
    "." [getter-psql #(> % 1)]
-   "~" [#(apply format "%s ~ %s" %) #(= % 2)]
-   "+" [#(string/join " + " %) #(> % 0)]
-   "-" [#(string/join " - " %) #(> % 0)]
-   "*" [#(string/join " * " %) #(> % 0)]
-   "/" [#(string/join " / " %) #(> % 0)]
-   "%" [#(apply format "MOD(%s, %s)" %) #(= % 2)]
-   "==" [#(string/join " = " %) #(> % 1)]
-   "!=" [#(string/join " <> " %) #(> % 1)]
-   ">" [#(string/join " > " %) #(> % 1)]
-   ">=" [#(string/join " >= " %) #(> % 1)]
-   "<" [#(string/join " < " %) #(> % 1)]
-   "<=" [#(string/join " <= " %) #(> % 1)]
-   "&&" [#(apply format "%s && %s" %) #(= % 2)]
-   "&" [#(string/join " AND " %) any?]
-   "|" [#(string/join " OR " %) any?]
-   "!" [#(apply format "NOT %s" %) #(= % 1)]})
+   "~" [(psql-op #(apply format "%s ~ %s" %)) #(= % 2)]
+   "+" [(psql-op #(string/join " + " %)) #(> % 0)]
+   "-" [(psql-op #(string/join " - " %)) #(> % 0)]
+   "*" [(psql-op #(string/join " * " %)) #(> % 0)]
+   "/" [(psql-op #(string/join " / " %)) #(> % 0)]
+   "%" [(psql-op #(apply format "MOD(%s, %s)" %)) #(= % 2)]
+   "==" [(psql-op #(string/join " = " %)) #(> % 1)]
+   "!=" [(psql-op #(string/join " <> " %)) #(> % 1)]
+   ">" [(psql-op #(string/join " > " %)) #(> % 1)]
+   ">=" [(psql-op #(string/join " >= " %)) #(> % 1)]
+   "<" [(psql-op #(string/join " < " %)) #(> % 1)]
+   "<=" [(psql-op #(string/join " <= " %)) #(> % 1)]
+   "&&" [(psql-op #(apply format "%s && %s" %)) #(= % 2)]
+   "&" [(psql-op #(string/join " AND " %)) any?]
+   "|" [(psql-op #(string/join " OR " %)) any?]
+   "!" [(psql-op #(apply format "NOT %s" %)) #(= % 1)]})
 
 (defn qast->psql
-  "Parse query AST into PostgreSQL predicate.
-  Return nil in case of an invalid AST."
+  "Parse query AST into a vector of parameterized PostgreSQL predicate
+  followed by the values to be bound to its placeholders.
+  Return nil in case of an invalid AST.
+
+  Literals are never spliced into the SQL, so queries of the same shape
+  share the same SQL and thus its prepared statement."
   [ast]
-  (cond (vector? ast) (if-let [[op valid?] (get ops-psql (first ast))]
-                        (when (valid? (dec (count ast)))
-                          (let [args (map qast->psql (rest ast))]
-                            (when (every? some? args)
-                              (format "(%s)" (op args)))))
-                        (format "ARRAY[%s]"
-                                (string/join ", " (map qast->psql ast))))
-        (string? ast) (format "'%s'" ast)
-        ;; TODO: map
-        :else (json/write-str ast)))
+  (cond (vector? ast) (let [[op valid?] (get ops-psql (first ast))
+                            args (map qast->psql (if op (rest ast) ast))]
+                        (when (every? some? args)
+                          (if op
+                            (when (valid? (count args))
+                              (when-let [[sql & params] (op args)]
+                                (into [(format "(%s)" sql)] params)))
+                            ((psql-op #(format "ARRAY[%s]"
+                                               (string/join ", " %)))
+                             args))))
+        (map? ast) ["?::jsonb" (json/write-str ast)]
+        (nil? ast) ["NULL"]
+        :else ["?" ast]))
 
 (defn json->psql
-  "Parse JSON input stream reader into PostgreSQL predicate.
+  "Parse JSON input stream reader into parameterized PostgreSQL predicate.
   Return nil in case of an invalid AST."
   [reader]
   (let [ast (try (json/read reader)
                  (catch Exception e nil))]
     (when ast (qast->psql ast))))
 
-(defn not-nil-fn
-  "Check for nil in operations result."
-  [args row]
-  (let [operands (map #(% row) args)]
-    (when (every? some? operands)
-      operands)))
-
-(defn mkfn
-  "Construct a function returning a lambda lazily applying given operator."
-  [op]
-  (fn [args]
-    (fn [row]
-      (when-let [operands (not-nil-fn args row)]
-        (apply op operands)))))
-
-(def ops-fn
-  "Supported query operators and their predicates for number of operands."
-  {"$" [(constantly identity) #(= % 0)]
-   "." [(fn [args]
-          (fn [row]
-            (when-let [operands (not-nil-fn args row)]
-              (reduce #(get %1 %2) operands)))) #(> % 1)]
-   "~" [(fn [args]
-          (fn [row]
-            (let [[s p] (map #(% row) args)]
-              (when (and (some? p) (some? s))
-                (re-matches (re-pattern p) s))))) #(= % 2)]
-   "+" [(mkfn +) #(> % 0)]
-   "-" [(mkfn -) #(> % 0)]
-   "*" [(mkfn *) #(> % 0)]
-   "/" [(mkfn /) #(> % 0)]
-   "%" [(mkfn rem) #(= % 2)]
-   "==" [(mkfn =) #(> % 1)]
-   "!=" [(mkfn not=) #(> % 1)]
-   ">" [(mkfn >) #(> % 1)]
-   ">=" [(mkfn >=) #(> % 1)]
-   "<" [(mkfn <) #(> % 1)]
-   "<=" [(mkfn <=) #(> % 1)]
-   ;; TODO: "&&" [#(apply format "%s && %s" %) #(= % 2)]
-   "&" [(fn [args]
-          (fn [row] (every? boolean (map #(% row) args)))) any?]
-   "|" [(fn [args]
-          (fn [row] (not (every? not (map #(% row) args))))) any?]
-   "!" [(mkfn not) #(= % 1)]})
-
 (defn qast->fn
-  "Parse query AST into programmatic predicate.
+  "Compile query AST into programmatic predicate.
   Return nil in case of an invalid AST."
   [ast]
-  (if (vector? ast)
-    (if-let [[op valid?] (get ops-fn (first ast))]
-      (when (valid? (dec (count ast)))
-        (op (map qast->fn (rest ast))))
-      (constantly ast))
-    (constantly ast)))
+  (Evaluator/compile ast))
 
 (defn json->fn
   "Parse JSON input stream reader into programmatic predicate.
@@ -135,3 +107,18 @@
   (let [ast (try (json/read reader)
                  (catch Exception e nil))]
     (when ast (qast->fn ast))))
+
+(defn qast->extraction
+  "Compile extraction query AST, either a predicate or an object
+  of the predicate, projection, grouping, order and limit.
+  Return nil in case of an invalid AST."
+  [ast]
+  (Extraction/compile ast))
+
+(defn json->extraction
+  "Parse JSON input stream reader into an extraction query.
+  Return nil in case of an invalid AST."
+  [reader]
+  (let [ast (try (json/read reader)
+                 (catch Exception e nil))]
+    (when (some? ast) (qast->extraction ast))))
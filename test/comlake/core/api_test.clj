@@ -23,7 +23,9 @@
             [clojure.data.json :as json]
             [clojure.test :refer [deftest is testing]]
             [clojure.java.io :refer [file input-stream reader resource]]
-            [comlake.core.main :refer [-main]]))
+            [clojure.string :as string]
+            [comlake.core.main :refer [-main database filesystem serve]])
+  (:import (comlake.core Configuration Metrics)))
 
 (def port 42069)
 (def init-dir
@@ -106,7 +108,36 @@
                                {:body (json/write-str args)})]
       (is (and (= 400 (:status response))
                (= "dest is not a directory"
-                  (get (json-body response) "error")))))))
+                  (get (json-body response) "error"))))))
+  (testing "path taken"
+    (let [args {:src interjection-cid :dest init-dir-cid :path "help"}
+          response @(http-post (make-url "/cp")
+                               {:body (json/write-str args)})]
+      (is (and (= 400 (:status response))
+               (= "failed to copy" (get (json-body response) "error"))))))
+  (testing "files"
+    (let [copy (fn [files]
+                 @(http-post (make-url "/cp")
+                             {:body (json/write-str {:dest empty-dir-cid
+                                                     :files files})}))]
+      (let [response (copy [{:src interjection-cid :path "interjection"}
+                            {:src init-dir-cid :path "init"}])]
+        (is (= 200 (:status response))))
+      (doseq [files [[{:src interjection-cid :path "a"}
+                      {:src init-dir-cid :path "a"}]
+                     [{:src interjection-cid :path 42}]
+                     [{:src interjection-cid}]
+                     ["interjection"]
+                     {:src interjection-cid :path "a"}]]
+        (let [response (copy files)]
+          (is (and (= 400 (:status response))
+                   (= "malformed files"
+                      (get (json-body response) "error"))))))
+      (let [response (copy [{:src interjection-cid
+                             :path "missing/interjection"}])]
+        (is (and (= 400 (:status response))
+                 (= "failed to copy"
+                    (get (json-body response) "error"))))))))
 
 (deftest post-add
   (let [url (make-url "/dataset")
@@ -139,6 +170,34 @@
                  (= "missing parent"
                     (get (json-body response) "error"))))))))
 
+(deftest post-bulk
+  (let [hello "SGVsbG8sIFdvcmxkIQo="
+        items [{"type" "text/plain" "data" hello}
+               ;; PostgreSQL rejects text with NUL characters.
+               {"type" "text/plain\u0000" "data" "SSdkIGp1c3QK"}
+               {"data" hello}
+               {"file" interjection-cid
+                "description" "Interjection"
+                "source" "https://wiki.installgentoo.com"
+                "topics" ["copypasta"]}]
+        body (str (string/join "\n" (map json/write-str items)) "\n{\n")
+        response @(http-post (make-url "/bulk") {:body body})
+        [hello-result nul-result untyped dataset malformed]
+        (json-body response)]
+    (is (= 200 (:status response)))
+    (testing "good file in a batch with a bad one"
+      (is (= {"cid" "QmfM2r8seH2GiRaC4esTjeraXEachRt8ZsSeGaWTPLyMoG"}
+             hello-result)))
+    (testing "bad file"
+      (is (= {"error" "failed to insert file"} nul-result)))
+    (testing "missing type"
+      (is (= {"error" "missing type"} untyped)))
+    (testing "dataset"
+      (is (= interjection-cid (get dataset "cid")))
+      (is (contains? dataset "id")))
+    (testing "malformed item"
+      (is (= {"error" "malformed item"} malformed)))))
+
 (deftest post-find
   (let [url (make-url "/find")
         options {:accept :json
@@ -149,13 +208,81 @@
         (is (and (= 200 (:status response))
                  ;; Obviously file CID cannot be empty
                  (empty? (json-body response))))))
+    (testing "paged"
+      (let [response @(http-post (str url "?limit=1") options)]
+        (is (and (= 200 (:status response))
+                 (= {"results" [] "next" nil} (json-body response))))))
+    (testing "malformed token"
+      (let [response @(http-post (str url "?after=-") options)]
+        (is (and (= 400 (:status response))
+                 (= "malformed token"
+                    (get (json-body response) "error"))))))
     (testing "malformed query"
       (let [override {:body "{"}
             response @(http-post url (merge options override))]
         (is (and (= 400 (:status response))
                  (= "malformed query"
+                    (get (json-body response) "error"))))))
+    (testing "projected"
+      (let [query ["==" ["." ["$"] "file"] interjection-cid]
+            override {:body (json/write-str query)}
+            response @(http-post (str url "?fields=cid,description,language")
+                                 (merge options override))
+            results (json-body response)]
+        (is (and (= 200 (:status response))
+                 (seq results)
+                 (every? #(= interjection-cid (get % "cid")) results)
+                 ;; Missing fields are omitted rather than null.
+                 (every? #(every? #{"cid" "description" "language"}
+                                  (keys %))
+                         results)
+                 (some #{{"cid" interjection-cid
+                          "description" "Interjection"
+                          "language" "English"}}
+                       results)))))
+    (testing "empty fields"
+      (let [response @(http-post (str url "?fields=") options)]
+        (is (and (= 400 (:status response))
+                 (= "malformed fields"
+                    (get (json-body response) "error"))))))
+    (testing "too many fields"
+      (let [fields (string/join "," (map #(str "f" %) (range 51)))
+            response @(http-post (str url "?fields=" fields) options)]
+        (is (and (= 400 (:status response))
+                 (= "malformed fields"
                     (get (json-body response) "error"))))))))
 
+(defn find-limited
+  "Post the query to /find on a server started on the next port
+  with the given planner cost limit and statement timeout."
+  [query max-cost timeout]
+  (let [cfg (doto (Configuration.)
+              (-> .-psqlMaxCost (set! max-cost))
+              (-> .-psqlStatementTimeout (set! timeout)))
+        metrics (Metrics.)
+        server (serve (filesystem cfg metrics) (database cfg metrics)
+                      cfg metrics (inc port))]
+    (try @(http-post (str "http://localhost:" (inc port) "/find")
+                     {:accept :json
+                      :content-type :json
+                      :body (json/write-str query)})
+         (finally (.close server)
+                  (wait-for-close server)))))
+
+(deftest post-find-limited
+  (testing "too expensive"
+    (let [response (find-limited ["~" ["." ["$"] "file"] "^$"] 1e-9 0)]
+      (is (and (= 422 (:status response))
+               (= "query too expensive"
+                  (get (json-body response) "error"))))))
+  (testing "timed out"
+    ;; Overlap of disjoint arrays compares every pair of elements.
+    (let [query ["&&" (vec (range 16000)) (vec (range 16000 32000))]
+          response (find-limited query 0.0 100)]
+      (is (and (= 503 (:status response))
+               (= "query timed out"
+                  (get (json-body response) "error")))))))
+
 (deftest get-dir
   (testing "success"
     (let [response @(http-get (make-url (str "/dir/" init-dir-cid)))]
@@ -176,6 +303,24 @@
       (is (and (= 200 (:status response))
                (= (slurp (:body response))
                   (slurp interjection))))))
+  (testing "range"
+    (let [response @(http-get (make-url (str "/file/" interjection-cid))
+                              {:headers {:range "bytes=4-7"}})]
+      (is (and (= 206 (:status response))
+               (= "bytes 4-7/1284"
+                  (get-in response [:headers "content-range"]))
+               (= (subs (slurp interjection) 4 8)
+                  (slurp (:body response)))))))
+  (testing "not modified"
+    (let [etag (str \" interjection-cid \")
+          response @(http-get (make-url (str "/file/" interjection-cid))
+                              {:headers {:if-none-match etag}})]
+      (is (= 304 (:status response)))))
+  (testing "not modified but not found"
+    (let [response @(http-get (make-url "/file/this-cid-does-not-exist")
+                              {:headers {:if-none-match
+                                         "\"this-cid-does-not-exist\""}})]
+      (is (= 404 (:status response)))))
   (testing "not found"
     (let [response @(http-get (make-url "/file/this-cid-does-not-exist"))]
       (is (and (= 404 (:status response))
@@ -230,7 +375,9 @@
          (post-cp)
          (post-add)
          (post-update)
+         (post-bulk)
          (post-find)
+         (post-find-limited)
          (get-file)
          (get-dir)
          (get-schema)
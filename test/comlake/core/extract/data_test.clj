@@ -0,0 +1,97 @@
+;;;; Data extractor tests
+;;;; Copyright (C) 2021  Nguyễn Gia Phong
+;;;;
+;;;; This file is part of comlake.core.
+;;;;
+;;;; comlake.core is free software: you can redistribute it and/or modify
+;;;; it under the terms of the GNU Affero General Public License version 3
+;;;; as published by the Free Software Foundation.
+;;;;
+;;;; comlake.core is distributed in the hope that it will be useful,
+;;;; but WITHOUT ANY WARRANTY; without even the implied warranty of
+;;;; MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+;;;; GNU Affero General Public License for more details.
+;;;;
+;;;; You should have received a copy of the GNU Affero General Public License
+;;;; along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+
+(ns comlake.core.extract.data-test
+  "Data extractor tests."
+  (:require [clojure.data.json :as json]
+            [clojure.java.io :refer [input-stream reader]]
+            [clojure.test :refer [deftest is testing]]
+            [comlake.core.extract.data :refer [extract-data json-elements
+                                               numeric-columns]]
+            [comlake.core.extract.metadata :refer [infer-json]]
+            [comlake.core.qast :refer [qast->extraction]])
+  (:import (comlake.core.extract ColumnStore ColumnStore$Builder)
+           (comlake.core.fs FileSystem)
+           (java.io StringReader)
+           (java.nio.file Files)
+           (java.nio.file.attribute FileAttribute)))
+
+(def content
+  (json/write-str [{"name" "a" "tags" [1 2] "extra" {"size" 1} "score" 3}
+                   {"name" "b" "tags" [2 3] "extra" {"size" 2} "score" 0.5}
+                   {"name" "c" "tags" [1] "extra" {"size" 1.5} "score" nil}]))
+
+(def schema
+  "JSON schema of the example content, as inferred on upload."
+  (let [fs (reify FileSystem
+             (fetch [_ cid] (input-stream (.getBytes content "UTF-8"))))]
+    (json/write-str (first (infer-json nil fs nil)))))
+
+(defn column-store
+  "Build a column store of the example content in a temporary directory,
+  with the given columns also stored as numbers."
+  [numeric]
+  (let [dir (Files/createTempDirectory "columns" (make-array FileAttribute 0))]
+    (with-open [builder (ColumnStore$Builder. dir numeric)]
+      (doseq [row (json-elements (StringReader. content))]
+        (.add builder (into {} (map (fn [[k v]] [k (json/write-str v)]))
+                            row))))
+    (ColumnStore. dir)))
+
+(defn extract-text
+  "Extract the example content as text."
+  [ast]
+  (map json/read-str (extract-data (qast->extraction ast) "application/json"
+                                   (StringReader. content))))
+
+(defn extract-columns
+  "Extract the example content from its column store."
+  [store ast]
+  (let [query (qast->extraction ast)]
+    (map json/read-str
+         (iterator-seq
+           (if (.filterOnly query)
+             (.scan store (.-where query))
+             (.apply query (.rows store (.-where query))
+                     (ColumnStore/encoder json/write-str)))))))
+
+(deftest numeric-json-columns
+  (is (= ["score"] (numeric-columns schema)))
+  (is (empty? (numeric-columns
+                (json/write-str {"items" {"properties"
+                                          {"a" {"type" ["null"]}
+                                           "b" {"type" ["number" "string"]}
+                                           "c" {"type" "string"}}}})))))
+
+(deftest column-store-equivalence
+  (let [store (column-store (numeric-columns schema))]
+    (doseq [ast [[">" ["." ["$"] "score"] 1]
+                 ["<" ["+" ["." ["$"] "score"] 1] 2]
+                 {"select" {"total" ["sum" ["." ["$"] "score"]]}}
+                 {"select" {"name" ["." ["$"] "name"]}
+                  "order-by" [["asc" ["." ["$"] "score"]]]}
+                 ["&&" ["." ["$"] "tags"] [1]]
+                 ["==" ["." ["$"] "extra"] {"size" 1}]
+                 ["==" ["." ["$"] "tags"] [2 3]]
+                 {"select" {"tags" ["." ["$"] "tags"] "n" ["count"]}
+                  "group-by" [["." ["$"] "tags"]]}
+                 {"select" {"size" ["." ["$"] "extra" "size"]}
+                  "order-by" [["desc" ["." ["$"] "size"]]]}]]
+      (testing (json/write-str ast)
+        (let [expected (extract-text ast)]
+          (is (seq expected))
+          (is (= expected (extract-columns store ast))))))))
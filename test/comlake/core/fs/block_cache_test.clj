@@ -0,0 +1,72 @@
+;;;; Block cache tests
+;;;; Copyright (C) 2021  Nguyễn Gia Phong
+;;;;
+;;;; This file is part of comlake.core.
+;;;;
+;;;; comlake.core is free software: you can redistribute it and/or modify
+;;;; it under the terms of the GNU Affero General Public License version 3
+;;;; as published by the Free Software Foundation.
+;;;;
+;;;; comlake.core is distributed in the hope that it will be useful,
+;;;; but WITHOUT ANY WARRANTY; without even the implied warranty of
+;;;; MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+;;;; GNU Affero General Public License for more details.
+;;;;
+;;;; You should have received a copy of the GNU Affero General Public License
+;;;; along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+
+(ns comlake.core.fs.block-cache-test
+  "Block cache tests."
+  (:require [clojure.test :refer [deftest is testing]])
+  (:import (comlake.core.fs BlockCache FileSystem)
+           (java.io ByteArrayInputStream)
+           (java.nio.file Files)
+           (java.nio.file.attribute FileAttribute)
+           (java.util.concurrent CountDownLatch)))
+
+(def cid "QmTumTjvcYCAvRRwQ8sDRxh8ezmrcr88YFU7iYNroGGTBZ")
+(def content (apply str (repeat 4096 "Hello, world!\n")))
+
+(defn slow-fs
+  "Return a file system serving content slowly for any CID
+  and an atom counting its fetches."
+  []
+  (let [fetches (atom 0)]
+    [(reify FileSystem
+       (fetch [_ cid]
+         (swap! fetches inc)
+         (Thread/sleep 200)
+         (ByteArrayInputStream. (.getBytes content "UTF-8"))))
+     fetches]))
+
+(defn block-cache
+  "Wrap the file system with a cache of the given capacity
+  in a new temporary directory."
+  [fs capacity]
+  (BlockCache. fs (str (Files/createTempDirectory
+                         "comlake" (make-array FileAttribute 0)))
+               capacity capacity))
+
+(defn fetch-concurrently
+  "Fetch the CID from the cache n times at once
+  and return the content read by each."
+  [cache n]
+  (let [start (CountDownLatch. 1)
+        results (doall (repeatedly n #(future (.await start)
+                                              (slurp (.fetch cache cid)))))]
+    (.countDown start)
+    (map deref results)))
+
+(deftest concurrent-misses
+  (testing "single download"
+    (let [[fs fetches] (slow-fs)
+          cache (block-cache fs (* 1024 1024))]
+      (is (every? #{content} (fetch-concurrently cache 8)))
+      (is (= 1 @fetches))
+      (is (some? (.local cache cid)))))
+  (testing "too large to cache"
+    (let [[fs fetches] (slow-fs)
+          cache (block-cache fs 1024)]
+      (is (every? #{content} (fetch-concurrently cache 8)))
+      (is (= 8 @fetches))
+      (is (nil? (.local cache cid))))))
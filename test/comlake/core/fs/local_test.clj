@@ -0,0 +1,86 @@
+;;;; Local file system tests
+;;;; Copyright (C) 2021  Nguyễn Gia Phong
+;;;;
+;;;; This file is part of comlake.core.
+;;;;
+;;;; comlake.core is free software: you can redistribute it and/or modify
+;;;; it under the terms of the GNU Affero General Public License version 3
+;;;; as published by the Free Software Foundation.
+;;;;
+;;;; comlake.core is distributed in the hope that it will be useful,
+;;;; but WITHOUT ANY WARRANTY; without even the implied warranty of
+;;;; MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+;;;; GNU Affero General Public License for more details.
+;;;;
+;;;; You should have received a copy of the GNU Affero General Public License
+;;;; along with comlake.core.  If not, see <https://www.gnu.org/licenses/>.
+
+(ns comlake.core.fs.local-test
+  "Local file system tests."
+  (:require [clojure.java.io :refer [input-stream]]
+            [clojure.test :refer [deftest is testing]])
+  (:import (comlake.core.fs LocalFileSystem)
+           (java.nio.file Files)
+           (java.nio.file.attribute FileAttribute)))
+
+(defn local-fs
+  "Construct a local file system in a new temporary directory."
+  []
+  (LocalFileSystem. (str (Files/createTempDirectory
+                           "comlake" (make-array FileAttribute 0)))))
+
+(defn add
+  "Add the given string to the file system and return the CID."
+  [fs content]
+  (.add fs (input-stream (.getBytes content "UTF-8"))))
+
+(deftest add-fetch
+  (let [fs (local-fs)]
+    (testing "round trip"
+      (let [cid (add fs "Hello, world!\n")]
+        (is (= "Hello, world!\n" (slurp (.fetch fs cid))))
+        (is (some? (.local fs cid)))))
+    (testing "same content"
+      (is (= (add fs "Hello, world!\n") (add fs "Hello, world!\n"))))
+    (testing "different content"
+      (is (not= (add fs "foo") (add fs "bar"))))
+    (testing "empty"
+      (is (nil? (add fs ""))))
+    (testing "not found"
+      (is (nil? (.fetch fs "QmUNLLsPACCz1vLxQVkXqqLX5R1X345qqfHbsf67hvA3Nn")))
+      (is (nil? (.fetch fs "this-cid-does-not-exist"))))
+    (testing "directory"
+      (is (nil? (.fetch fs (.mkdir fs)))))))
+
+(deftest cp-ls
+  (let [fs (local-fs)
+        foo (add fs "foo")
+        bar (add fs "bar")
+        empty-dir (.mkdir fs)
+        dir (.cp fs foo empty-dir "foo")]
+    (testing "empty directory"
+      (is (= {} (.ls fs empty-dir))))
+    (testing "top level"
+      (is (= {"foo" foo} (.ls fs dir))))
+    (testing "nested"
+      (let [parent (.cp fs dir empty-dir "sub")
+            nested (.cp fs bar parent "sub/bar")
+            sub (get (.ls fs nested) "sub")]
+        (is (= {"foo" foo "bar" bar} (.ls fs sub)))
+        ;; The original directories are left intact.
+        (is (= {"foo" foo} (.ls fs (get (.ls fs parent) "sub"))))))
+    (testing "missing parent"
+      (is (nil? (.cp fs bar empty-dir "missing/bar"))))
+    (testing "existing target"
+      (is (nil? (.cp fs bar dir "foo"))))
+    (testing "file as parent"
+      (is (nil? (.cp fs bar dir "foo/bar"))))
+    (testing "file as destination"
+      (is (nil? (.cp fs bar foo "bar"))))
+    (testing "missing source"
+      (is (nil? (.cp fs "QmUNLLsPACCz1vLxQVkXqqLX5R1X345qqfHbsf67hvA3Nn"
+                     empty-dir "foo"))))
+    (testing "same content"
+      (is (= dir (.cp fs foo (.mkdir fs) "foo"))))
+    (testing "ls file"
+      (is (nil? (.ls fs foo))))))
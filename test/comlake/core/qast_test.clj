@@ -18,8 +18,9 @@
 
 (ns comlake.core.qast-test
   "Query AST parser tests."
-  (:require [clojure.test :refer [deftest is testing]]
-            [comlake.core.qast :refer [qast->fn qast->psql]]))
+  (:require [clojure.data.json :as json]
+            [clojure.test :refer [deftest is testing]]
+            [comlake.core.qast :refer [qast->extraction qast->fn qast->psql]]))
 
 (def regex-example ["~" "name@domain.com" ".*@(.*)"])
 (def maths-example ["&"
@@ -30,20 +31,88 @@
 
 (deftest psql-gen
   (testing "regular expression"
-    (is (= "('name@domain.com' ~ '.*@(.*)')"
+    (is (= ["(? ~ ?)" "name@domain.com" ".*@(.*)"]
            (qast->psql regex-example))))
   (testing "logical intersection"
-    (is (= "((topics) && ARRAY['copypasta'])"
+    (is (= ["((topics) && ARRAY[?])" "copypasta"]
            (qast->psql ["&&" ["." ["$"] "topics"] ["copypasta"]]))))
+  (testing "nested field"
+    (is (= ["((extra->?) = ?)" "language" "English"]
+           (qast->psql ["==" ["." ["$"] "extra" "language"] "English"]))))
+  (testing "column injection"
+    (is (nil? (qast->psql ["." ["$"] "id; DROP TABLE dataset"]))))
   (testing "quick maths"
-    (is (= (str "((((2 + 2) - 1) = 3)"
-                " AND (3 < (8 / 2) < (MOD((2 * 2 * 3), 7)))"
-                " AND (3000 >= 100)"
-                " AND (NOT ((420 <= 69) OR (9 > 11) OR (8 <> 8))))")
+    (is (= [(str "((((? + ?) - ?) = ?)"
+                 " AND (? < (? / ?) < (MOD((? * ? * ?), ?)))"
+                 " AND (? >= ?)"
+                 " AND (NOT ((? <= ?) OR (? > ?) OR (? <> ?))))")
+            2 2 1 3 3 8 2 2 2 3 7 3000 100 420 69 9 11 8 8]
            (qast->psql maths-example)))))
 
 (deftest fn-gen
   (testing "regular expression"
     (is ((qast->fn regex-example) {})))
   (testing "quick maths"
-    (is ((qast->fn maths-example) {}))))
+    (is ((qast->fn maths-example) {})))
+  (testing "tabular field"
+    (let [row {"country_code" "VNM" "year_2019" "96462106"}]
+      (is ((qast->fn ["&"
+                      ["==" ["." ["$"] "country_code"] "VNM"]
+                      [">" ["." ["$"] "year_2019"] ["*" 9 1e7]]]) row))
+      (is (= 96462107 ((qast->fn ["+" ["." ["$"] "year_2019"] 1]) row)))))
+  (testing "sum of tabular fields"
+    (let [row {"a" "1" "b" "2" "c" "0.5" "d" "x"}
+          sum ["+" ["." ["$"] "a"] ["." ["$"] "b"]]]
+      (is (= 3 ((qast->fn sum) row)))
+      (is ((qast->fn ["==" sum 3]) row))
+      (is ((qast->fn ["<" sum 10]) row))
+      (is ((qast->fn ["==" ["+" sum ["." ["$"] "c"]] 3.5]) row))
+      (is ((qast->fn ["==" ["+" ["." ["$"] "a"] 2] 3]) row))
+      (is (= "1x" ((qast->fn ["+" ["." ["$"] "a"] ["." ["$"] "d"]]) row)))
+      (is ((qast->fn ["==" ["+" ["." ["$"] "d"] ["." ["$"] "a"]] "x1"])
+           row))))
+  (testing "missing field"
+    (is (nil? ((qast->fn ["!" ["<" ["." ["$"] "nothing"] 1]]) {}))))
+  (testing "short circuit"
+    (is (false? ((qast->fn ["&" false ["<" ["." ["$"] "x"] 1]]) {})))
+    (is (true? ((qast->fn ["|" true ["<" ["." ["$"] "x"] 1]]) {}))))
+  (testing "malformed regular expression"
+    (is (nil? (qast->fn ["~" "foo" "("]))))
+  (testing "invalid arity"
+    (is (nil? (qast->fn ["!" true false])))))
+
+(def rows [{"c" "VNM" "p" "96462106"}
+           {"c" "LAO" "p" "7169455"}
+           {"c" "KHM" "p" "16486542"}
+           {"c" "THA" "p" ""}])
+
+(defn extract
+  "Apply the extraction query to the matching example rows."
+  [ast]
+  (let [query (qast->extraction ast)
+        matches (filter (.-where query) rows)]
+    (map json/read-str
+         (iterator-seq (.apply query (.iterator matches) json/write-str)))))
+
+(deftest extraction
+  (testing "aggregation"
+    (is (= [{"n" 4 "total" 120118103 "least" 7169455}]
+           (extract {"select" {"n" ["count"]
+                               "total" ["sum" ["." ["$"] "p"]]
+                               "least" ["min" ["." ["$"] "p"]]}}))))
+  (testing "top-k"
+    (is (= [{"c" "VNM" "p" "96462106"} {"c" "KHM" "p" "16486542"}]
+           (extract {"select" {"c" ["." ["$"] "c"] "p" ["." ["$"] "p"]}
+                     "order-by" [["desc" ["." ["$"] "p"]]]
+                     "limit" 2})))
+    (is (= ["LAO" "KHM" "VNM" "THA"]
+           (map #(% "c") (extract {"order-by" [["." ["$"] "p"]]})))))
+  (testing "empty input"
+    (is (= [{"n" 0 "total" nil}]
+           (extract {"where" false
+                     "select" {"n" ["count"]
+                               "total" ["sum" ["." ["$"] "p"]]}}))))
+  (testing "invalid query"
+    (is (nil? (qast->extraction {"group-by" [["." ["$"] "c"]]})))
+    (is (nil? (qast->extraction {"select" {"n" ["sum"]}})))
+    (is (nil? (qast->extraction {"limit" -1})))))